@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the latency of requests per path and traces the next few requests of a
+ * path once its latency regresses. The latencies of the most recent requests are
+ * kept in a ring per path and the p95 is computed each time the ring fills up. If
+ * the p95 exceeds the threshold, and with a baseline factor configured also the
+ * baseline p95 of the path by that factor, the next requests of that path are
+ * traced. A cooldown per path prevents tracing the same regression over and over.
+ *
+ * Recording a latency is a lock free array write and counter increment. Only the
+ * request completing a window sorts a copy of the ring so the p95 is an
+ * approximation when requests of the same path complete concurrently.
+ *
+ * The number of tracked paths is bounded. Once the limit is reached, paths not
+ * requested within the idle time are dropped to make room for new ones, and if
+ * all paths are busy the least recently requested quarter is dropped. Such a sweep
+ * runs at most once per second
+ */
+class AutoTracer {
+    private static final Logger log = LoggerFactory.getLogger(AutoTracer.class);
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    static final class PathStats {
+        private final AtomicLongArray samples;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final AtomicLong cooldownUntil = new AtomicLong();
+        /**
+         * Moving average of the p95 of the windows which did not regress. -1 till
+         * the first window completes
+         */
+        private volatile long baseline = -1;
+
+        private volatile long lastP95 = -1;
+
+        private volatile long lastSeen;
+
+        PathStats(int windowSize) {
+            this.samples = new AtomicLongArray(windowSize);
+        }
+
+        long getBaseline() {
+            return baseline;
+        }
+
+        long getLastP95() {
+            return lastP95;
+        }
+
+        private boolean isTracing() {
+            return remaining.get() > 0;
+        }
+    }
+
+    private final ConcurrentMap<String, PathStats> paths = new ConcurrentHashMap<>();
+
+    private final long thresholdMillis;
+
+    private final double baselineFactor;
+
+    private final int windowSize;
+
+    private final int requests;
+
+    private final long cooldownMillis;
+
+    private final int maxPaths;
+
+    private final long idleMillis;
+
+    private final String tracerSets;
+
+    private final AtomicLong lastSweep = new AtomicLong();
+
+    AutoTracer(
+            long thresholdMillis,
+            double baselineFactor,
+            int windowSize,
+            int requests,
+            long cooldownMillis,
+            int maxPaths,
+            long idleMillis,
+            String tracerSets) {
+        this.thresholdMillis = thresholdMillis;
+        this.baselineFactor = baselineFactor;
+        this.windowSize = Math.max(1, windowSize);
+        this.requests = requests;
+        this.cooldownMillis = cooldownMillis;
+        this.maxPaths = maxPaths;
+        this.idleMillis = idleMillis;
+        this.tracerSets = tracerSets;
+    }
+
+    /**
+     * Creates the auto tracer for the given config. Returns null if no threshold,
+     * no tracer set or no number of requests to trace is configured
+     */
+    @Nullable
+    static AutoTracer create(Configuration config) {
+        String tracerSets = Util.trimToNull(config.autoTraceTracerSets());
+        if (config.autoTraceThresholdMillis() <= 0 || tracerSets == null || config.autoTraceRequests() <= 0) {
+            return null;
+        }
+        return new AutoTracer(
+                config.autoTraceThresholdMillis(),
+                config.autoTraceBaselineFactor(),
+                config.autoTraceWindowSize(),
+                config.autoTraceRequests(),
+                TimeUnit.SECONDS.toMillis(config.autoTraceCooldownSecs()),
+                config.autoTraceMaxPaths(),
+                TimeUnit.SECONDS.toMillis(config.autoTraceIdleSecs()),
+                tracerSets);
+    }
+
+    /**
+     * Records the time taken by a request for given path
+     */
+    void record(String path, long timeTakenMillis) {
+        record(path, timeTakenMillis, System.currentTimeMillis());
+    }
+
+    void record(String path, long timeTakenMillis, long now) {
+        PathStats stats = track(path, now);
+        if (stats == null) {
+            return;
+        }
+        long n = stats.count.getAndIncrement();
+        stats.samples.set((int) (n % windowSize), timeTakenMillis);
+        if ((n + 1) % windowSize == 0) {
+            evaluate(path, stats, now);
+        }
+    }
+
+    /**
+     * Returns true if the request for given path should be traced as the latency of
+     * the path regressed recently
+     */
+    boolean shouldTrace(String path) {
+        if (path == null) {
+            return false;
+        }
+        PathStats stats = paths.get(path);
+        // Check before decrementing so that the counter does not drift below zero
+        return stats != null && stats.remaining.get() > 0 && stats.remaining.getAndDecrement() > 0;
+    }
+
+    /**
+     * Returns the comma separated names of tracer sets to apply to auto traced
+     * requests
+     */
+    String getTracerSets() {
+        return tracerSets;
+    }
+
+    @Nullable
+    PathStats getStats(String path) {
+        return path != null ? paths.get(path) : null;
+    }
+
+    int getPathCount() {
+        return paths.size();
+    }
+
+    @Nullable
+    private PathStats track(String path, long now) {
+        if (path == null) {
+            return null;
+        }
+        PathStats stats = paths.get(path);
+        if (stats == null) {
+            if (paths.size() >= maxPaths && !sweep(now)) {
+                // Do not let distinct paths grow the map without bound
+                return null;
+            }
+            stats = paths.computeIfAbsent(path, p -> new PathStats(windowSize));
+        }
+        stats.lastSeen = now;
+        return stats;
+    }
+
+    /**
+     * Drops idle paths to make room for new ones. Returns true if there is room
+     */
+    private boolean sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MILLIS || !lastSweep.compareAndSet(last, now)) {
+            return false;
+        }
+        paths.values().removeIf(s -> now - s.lastSeen >= idleMillis);
+        if (paths.size() >= maxPaths) {
+            long[] seen =
+                    paths.values().stream().mapToLong(s -> s.lastSeen).sorted().toArray();
+            if (seen.length > 0) {
+                long cutoff = seen[seen.length / 4];
+                // Paths being traced are kept so that their cooldown applies
+                paths.values().removeIf(s -> s.lastSeen <= cutoff && !s.isTracing());
+            }
+        }
+        return paths.size() < maxPaths;
+    }
+
+    private void evaluate(String path, PathStats stats, long now) {
+        long[] window = new long[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            window[i] = stats.samples.get(i);
+        }
+        Arrays.sort(window);
+        long p95 = window[(int) Math.ceil(0.95 * windowSize) - 1];
+        stats.lastP95 = p95;
+
+        long baseline = stats.baseline;
+        boolean regressed = p95 >= thresholdMillis && (baselineFactor <= 0 || isAboveBaseline(p95, baseline));
+        if (!regressed) {
+            // Exponential moving average so that a single window does not shift the baseline
+            stats.baseline = baseline < 0 ? p95 : (7 * baseline + p95) / 8;
+            return;
+        }
+
+        long until = stats.cooldownUntil.get();
+        if (now >= until && stats.cooldownUntil.compareAndSet(until, now + cooldownMillis)) {
+            stats.remaining.set(requests);
+            log.info(
+                    "Latency of {} regressed to p95 {} ms (baseline {} ms). Tracing the next {} requests",
+                    path,
+                    p95,
+                    baseline,
+                    requests);
+        }
+    }
+
+    private boolean isAboveBaseline(long p95, long baseline) {
+        // Without a baseline there is nothing to regress from
+        return baseline >= 0 && p95 > baselineFactor * baseline;
+    }
+}
@@ -20,6 +20,7 @@ package org.apache.sling.tracer.internal;
 
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.service.metatype.annotations.Option;
 
 @ObjectClassDefinition(
         name = "Apache Sling Log Tracer",
@@ -56,9 +57,200 @@ public @interface Configuration {
             description = "Time in seconds upto which the recording data would be held in memory before expiry")
     long recordingCacheDurationInSecs() default 60 * 15;
 
+    @AttributeDefinition(
+            name = "Recording Eviction Policy",
+            description = "Policy used to select the recordings to evict once the cache size is exceeded. With "
+                    + "'lru' least recently accessed recordings are evicted. With 'value' the most valuable "
+                    + "recordings based on time taken, errors and queries performed are retained and others "
+                    + "are evicted in least recently accessed order",
+            options = {
+                @Option(label = "Least Recently Accessed", value = EvictionPolicy.LRU_NAME),
+                @Option(label = "Value", value = EvictionPolicy.VALUE_NAME)
+            })
+    String recordingEvictionPolicy() default EvictionPolicy.LRU_NAME;
+
+    @AttributeDefinition(
+            name = "Retained Recordings",
+            description = "Number of most valuable recordings retained by the 'value' eviction policy")
+    int recordingRetainedCount() default 20;
+
+    @AttributeDefinition(
+            name = "Memory High Watermark",
+            description = "Heap occupancy after garbage collection in percent above which cached recordings are "
+                    + "released and new recordings are refused. The collection usage threshold of heap pools "
+                    + "is only set if it is not already set by the JVM or another component. Set to 0 to disable")
+    int memoryHighWatermarkPercent() default 0;
+
+    @AttributeDefinition(
+            name = "Memory Low Watermark",
+            description = "Heap occupancy after garbage collection in percent below which new recordings are "
+                    + "accepted again once the high watermark was crossed")
+    int memoryLowWatermarkPercent() default 70;
+
+    @AttributeDefinition(
+            name = "Off Heap Recordings",
+            description = "Store the payload of cached recordings in direct memory instead of on the heap. The "
+                    + "direct memory used is bounded by the recording cache size")
+    boolean recordingOffHeapEnabled() default false;
+
+    @AttributeDefinition(
+            name = "Recording Store",
+            description = "Also store completed recordings on disk in the bundle data area so that they are "
+                    + "available after eviction from the cache and across restarts")
+    boolean recordingStoreEnabled() default false;
+
+    @AttributeDefinition(
+            name = "Recording Store Size (MB)",
+            description = "Disk space used by stored recordings beyond which the oldest segments are deleted")
+    int recordingStoreSizeInMB() default 1024;
+
+    @AttributeDefinition(
+            name = "Recording Store Segment Size (MB)",
+            description = "Size of each segment file. Recordings are deleted a whole segment at a time")
+    int recordingStoreSegmentSizeInMB() default 16;
+
+    @AttributeDefinition(
+            name = "Recording Store Max Age (hours)",
+            description = "Age after which stored recordings are deleted. Set to 0 to only limit by size")
+    int recordingStoreMaxAgeInHours() default 24;
+
+    @AttributeDefinition(
+            name = "Recompress After (secs)",
+            description = "Compressed recordings are compressed fast at first and recompressed at the best level "
+                    + "once older than this when the system is idle. Set to 0 to compress once at the default level")
+    int recordingRecompressAfterSecs() default 300;
+
+    @AttributeDefinition(
+            name = "Search Index Terms",
+            description = "Maximum number of terms (loggers, levels, query shapes and paths, uri segments and "
+                    + "message tokens) a recording is indexed with for searching the cached recordings. "
+                    + "Set to 0 to disable the search index")
+    int recordingSearchMaxTerms() default 256;
+
+    @AttributeDefinition(
+            name = "Live Subscribers",
+            description = "Maximum number of clients streaming the events of in flight recordings at a time. "
+                    + "Set to 0 to disable live streaming")
+    int liveMaxSubscribers() default 4;
+
+    @AttributeDefinition(
+            name = "Sampling Rate",
+            description = "Fraction of requests between 0 and 1 traced with the sampling tracer sets without "
+                    + "the client asking for it. Set to 0 to only sample the paths configured below")
+    double samplingRate() default 0;
+
+    @AttributeDefinition(
+            name = "Sampling Path Rates",
+            description = "Sampling rates for specific paths in the format <regex>=<rate>. The first pattern "
+                    + "matching the request path wins over the global sampling rate")
+    String[] samplingPathRates() default {};
+
+    @AttributeDefinition(
+            name = "Sampling Tracer Sets",
+            description = "Comma separated names of the tracer sets applied to sampled requests")
+    String samplingTracerSets() default "oak-query";
+
+    @AttributeDefinition(
+            name = "Sampling Max Per Second",
+            description = "Maximum number of requests sampled per second irrespective of the rates")
+    int samplingMaxPerSecond() default 10;
+
+    @AttributeDefinition(
+            name = "Auto Trace Threshold (ms)",
+            description = "If set, the latency of each request path is tracked and the next requests of a path "
+                    + "are traced once its p95 latency exceeds this threshold. Set to 0 to disable")
+    long autoTraceThresholdMillis() default 0;
+
+    @AttributeDefinition(
+            name = "Auto Trace Baseline Factor",
+            description = "If set, a path is only traced if its p95 latency also exceeds its own baseline p95 "
+                    + "by this factor. Set to 0 to only use the threshold")
+    double autoTraceBaselineFactor() default 0;
+
+    @AttributeDefinition(
+            name = "Auto Trace Window Size",
+            description = "Number of requests per path over which the p95 latency is computed")
+    int autoTraceWindowSize() default 100;
+
+    @AttributeDefinition(
+            name = "Auto Trace Requests",
+            description = "Number of requests traced once the latency of their path regressed")
+    int autoTraceRequests() default 10;
+
+    @AttributeDefinition(
+            name = "Auto Trace Cooldown (secs)",
+            description = "Minimum time between two rounds of auto tracing for the same path")
+    int autoTraceCooldownSecs() default 300;
+
+    @AttributeDefinition(
+            name = "Auto Trace Max Paths",
+            description = "Maximum number of distinct paths whose latency is tracked. Once reached, paths which "
+                    + "were idle for the idle time are dropped to make room for new ones")
+    int autoTraceMaxPaths() default 1000;
+
+    @AttributeDefinition(
+            name = "Auto Trace Path Idle Time (secs)",
+            description = "Time after which a path without requests is no longer tracked once the maximum "
+                    + "number of paths is reached")
+    int autoTraceIdleSecs() default 600;
+
+    @AttributeDefinition(
+            name = "Auto Trace Tracer Sets",
+            description = "Comma separated names of the tracer sets applied to auto traced requests")
+    String autoTraceTracerSets() default "oak-query";
+
+    @AttributeDefinition(
+            name = "Tail Latency Threshold (ms)",
+            description = "If set, sampled requests are buffered cheaply and their recording is only kept if "
+                    + "the request took at least this long, failed with an exception or a 5xx status or logged "
+                    + "a warning or error with any logger. Set to 0 to keep all sampled recordings")
+    long tailLatencyThresholdMillis() default 0;
+
+    @AttributeDefinition(
+            name = "Tail Log Entries",
+            description = "Number of most recent log entries, and likewise of queries, buffered per sampled "
+                    + "request in tail mode")
+    int tailMaxLogEntries() default 100;
+
+    @AttributeDefinition(
+            name = "Max Traced Requests Per Second",
+            description = "Maximum rate at which new requests get traced. Requests beyond it are served without "
+                    + "tracing. Set to 0 to not limit the rate")
+    int admissionMaxPerSecond() default 20;
+
+    @AttributeDefinition(
+            name = "Max Concurrent Traced Requests",
+            description = "Maximum number of requests traced at a time. Set to 0 to not limit the concurrency")
+    int admissionMaxConcurrent() default 20;
+
+    @AttributeDefinition(
+            name = "Ad Hoc Config Min Level",
+            description = "Lowest log level which clients can request via the tracer config header or parameter. "
+                    + "Lower levels are raised to it. Configured tracer sets are not affected. The default TRACE "
+                    + "leaves the requested levels as is i.e. the floor is off by default")
+    String adHocMinLevel() default "TRACE";
+
     @AttributeDefinition(name = "Compress Recording", description = "Enable compression for recoding held in memory")
     boolean recordingCompressionEnabled() default true;
 
     @AttributeDefinition(name = "GZip Response", description = "If enabled the response sent would be compressed")
     boolean gzipResponse() default true;
+
+    @AttributeDefinition(
+            name = "Query Hotspot Threshold",
+            description = "Number of times a query of same shape needs to be executed from same caller within a "
+                    + "request for it to be reported as a hotspot in the recording. Set to 0 to disable")
+    int queryHotspotThreshold() default JSONRecording.DEFAULT_HOTSPOT_THRESHOLD;
+
+    @AttributeDefinition(
+            name = "Query Statistics Window",
+            description = "Time in seconds for which query statistics aggregated across all recordings are "
+                    + "retained. Set to 0 to disable the aggregation")
+    long queryStatsWindowInSecs() default 60 * 15;
+
+    @AttributeDefinition(
+            name = "Query Statistics Max Shapes",
+            description = "Maximum number of distinct query shapes tracked per time slice of the query "
+                    + "statistics window. Queries beyond this limit are accounted under a shared entry")
+    int queryStatsMaxShapes() default 1000;
 }
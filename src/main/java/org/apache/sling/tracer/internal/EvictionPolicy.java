@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.Locale;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines which recordings get evicted once the recording cache exceeds its
+ * size. By default recordings are evicted in least recently accessed order. A
+ * policy can mark some recordings as retained which are then skipped and only
+ * evicted once no other recording is left
+ */
+interface EvictionPolicy {
+    String LRU_NAME = "lru";
+
+    String VALUE_NAME = "value";
+
+    EvictionPolicy LRU = new EvictionPolicy() {
+        @Override
+        public void added(JSONRecording recording) {}
+
+        @Override
+        public void removed(JSONRecording recording) {}
+
+        @Override
+        public boolean isRetained(JSONRecording recording) {
+            return false;
+        }
+
+        @Override
+        public JSONRecording leastValuable() {
+            return null;
+        }
+    };
+
+    void added(JSONRecording recording);
+
+    void removed(JSONRecording recording);
+
+    /**
+     * Returns true if the recording should be skipped while evicting recordings in
+     * least recently accessed order
+     */
+    boolean isRetained(JSONRecording recording);
+
+    /**
+     * Returns the retained recording to evict when only retained recordings are left
+     */
+    @Nullable
+    JSONRecording leastValuable();
+
+    static EvictionPolicy create(String name, int retainedCount) {
+        String policyName = name == null ? LRU_NAME : name.trim().toLowerCase(Locale.ENGLISH);
+        if (VALUE_NAME.equals(policyName)) {
+            return new ValueEvictionPolicy(retainedCount);
+        }
+        if (!LRU_NAME.equals(policyName)) {
+            LoggerFactory.getLogger(EvictionPolicy.class)
+                    .warn("Unknown eviction policy [{}]. Falling back to [{}]", name, LRU_NAME);
+        }
+        return LRU;
+    }
+}
@@ -22,6 +22,7 @@ import javax.servlet.http.HttpServletRequest;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -32,12 +33,18 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -46,6 +53,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.felix.utils.json.JSONWriter;
 import org.apache.sling.api.request.RequestProgressTracker;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.helpers.FormattingTuple;
@@ -61,51 +69,270 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         "org.apache.jackrabbit.oak"
     };
     private static final Object[] EMPTY = new Object[0];
+    private static final String[] NO_TERMS = new String[0];
     private static final Logger log = LoggerFactory.getLogger(JSONRecording.class);
+    /**
+     * Query, plan and caller strings are shared across recordings
+     */
+    private static final StringInterner interner = StringInterner.INSTANCE;
+
     public static final String OAK_QUERY_PKG = "org.apache.jackrabbit.oak.query";
+    static final int DEFAULT_HOTSPOT_THRESHOLD = 10;
+    /**
+     * Level used by gzip by default i.e. {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    /**
+     * Approximate shallow size of a recording i.e. the object header with its
+     * primitive and reference fields
+     */
+    private static final int SHALLOW_SIZE = 112;
+    /**
+     * Number of loggers with the most entries listed in the summary
+     */
+    static final int SUMMARY_TOP_LOGGERS = 5;
+
     private final String method;
     private final String requestId;
     private final String uri;
     private final boolean compress;
-    private final List<QueryEntry> queries = new ArrayList<QueryEntry>();
-    private final List<LogEntry> logs = new ArrayList<LogEntry>();
-    private final Set<String> loggerNames = new HashSet<String>();
+    private final int hotspotThreshold;
+    private volatile int compressionLevel;
+    private Collection<QueryEntry> queries = new ArrayDeque<QueryEntry>();
+    private Collection<LogEntry> logs = new ArrayDeque<LogEntry>();
+    private Set<String> loggerNames = new HashSet<String>();
     private RequestProgressTracker tracker;
-    private byte[] json;
-    private final long start = System.currentTimeMillis();
+    /**
+     * Payload once the recording is done. Replaced as a whole when the cache moves
+     * it off heap or recompresses it
+     */
+    private volatile Snapshot payload;
+
+    private final long start;
+    /**
+     * Monotonic reference point for the recording timeline. All entry offsets
+     * are recorded in nanos relative to this so that sub-millisecond costs are
+     * not lost and wall clock adjustments do not distort the timeline
+     */
+    private final long startNanos = System.nanoTime();
+
     private long timeTaken;
-    private final QueryLogCollector queryCollector = new QueryLogCollector();
-    private final CallerFinder queryCallerFinder = new CallerFinder(QUERY_API_PKGS);
+    private long timeTakenNanos;
+    private Collection<QueryHotspotDetector.ShapeStats> queryStats = Collections.emptyList();
+    private int queryCount;
+    private int errorCount;
+    private int maxSearchTerms;
+    private String[] searchTerms = NO_TERMS;
+    private volatile LiveEventHub liveEvents;
+    private boolean summaryEnabled;
+    /**
+     * Maximum number of most recent log entries, and likewise of queries, kept in
+     * tail mode. Zero keeps all
+     */
+    private int maxTailEntries;
+
+    private int logCount;
+    private int warnCount;
+    private volatile boolean discarded;
+    private volatile String summary;
+    private QueryLogCollector queryCollector = new QueryLogCollector();
+    private CallerFinder queryCallerFinder = new CallerFinder(QUERY_API_PKGS);
 
     public JSONRecording(String requestId, HttpServletRequest r, boolean compress) {
+        this(requestId, r, compress, DEFAULT_HOTSPOT_THRESHOLD);
+    }
+
+    public JSONRecording(String requestId, HttpServletRequest r, boolean compress, int hotspotThreshold) {
+        this(requestId, r, compress, hotspotThreshold, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    public JSONRecording(
+            String requestId, HttpServletRequest r, boolean compress, int hotspotThreshold, int compressionLevel) {
         this.requestId = requestId;
+        // Time ordered ids embed the start so that both orders agree
+        long idTimestamp = RequestIdGenerator.timestampOf(requestId);
+        this.start = idTimestamp >= 0 ? idTimestamp : System.currentTimeMillis();
         this.compress = compress;
+        this.hotspotThreshold = hotspotThreshold;
+        this.compressionLevel = compressionLevel;
         this.method = r.getMethod();
         this.uri = r.getRequestURI();
     }
 
     public boolean render(Writer w) throws IOException {
-        if (json != null) {
-            Reader r = new InputStreamReader(getInputStream(false), "UTF-8");
+        InputStream is = getInputStream(false);
+        if (is == null) {
+            return false;
+        }
+        try (Reader r = new InputStreamReader(is, "UTF-8")) {
             IOUtils.copy(r, w);
-            return true;
         }
-        return false;
+        return true;
     }
 
     public boolean render(OutputStream os, boolean compressed) throws IOException {
-        if (json != null) {
-            IOUtils.copyLarge(getInputStream(compressed), os);
-            return true;
+        return render(os, compressed, 0, -1);
+    }
+
+    /**
+     * Writes the given byte range of the payload. A negative length writes till
+     * the end
+     */
+    public boolean render(OutputStream os, boolean compressed, long offset, long length) throws IOException {
+        try (OpenPayload p = openPayload()) {
+            return p != null && p.write(os, compressed, offset, length);
+        }
+    }
+
+    /**
+     * Opens the payload of a done recording. The returned payload keeps the level,
+     * length and content it was opened with even if the payload gets recompressed
+     * meanwhile. Returns null if the recording is not done or got evicted. The
+     * payload must be closed
+     */
+    @Nullable
+    OpenPayload openPayload() {
+        while (true) {
+            Snapshot s = payload;
+            if (s == null) {
+                return null;
+            }
+            InputStream is = s.openStream();
+            if (is != null) {
+                return new OpenPayload(s, is);
+            }
+            if (payload == s) {
+                // Released on eviction
+                return null;
+            }
+            // Off heap payload got replaced by recompression, so retry with the new one
         }
-        return false;
     }
 
     public int size() {
-        if (json != null) {
-            return json.length;
+        Snapshot s = payload;
+        return s != null ? s.length() : 0;
+    }
+
+    /**
+     * Returns true if the payload is stored in gzip form
+     */
+    boolean isCompressed() {
+        return compress;
+    }
+
+    /**
+     * Returns the gzip level the payload is compressed with
+     */
+    int getCompressionLevel() {
+        Snapshot s = payload;
+        return s != null ? s.level : compressionLevel;
+    }
+
+    /**
+     * Recompresses the payload of a done recording at the given level. An off heap
+     * payload is moved to new chunks, or back to heap if the allocator has no space
+     * left. Returns false if the payload is not compressed, is already compressed
+     * at that level or was released meanwhile
+     */
+    boolean recompress(int level, @Nullable SlabAllocator allocator) throws IOException {
+        Snapshot old = payload;
+        if (!compress || old == null || old.level >= level) {
+            return false;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(old.length());
+        InputStream raw = old.openStream();
+        if (raw == null) {
+            return false;
+        }
+        try (InputStream r = raw) {
+            InputStream is = new GZIPInputStream(r);
+            OutputStream os = gzip(baos, level);
+            IOUtils.copyLarge(is, os);
+            os.close();
+        }
+        byte[] data = baos.toByteArray();
+        if (old.offHeap == null) {
+            payload = new Snapshot(data, null, level);
+        } else {
+            SlabAllocator.Payload p = allocator != null ? allocator.store(data) : null;
+            payload = p != null ? new Snapshot(null, p, level) : new Snapshot(data, null, level);
+            if (!old.offHeap.release() && p != null) {
+                // Recording got evicted while being recompressed
+                p.release();
+            }
         }
-        return 0;
+        return true;
+    }
+
+    private static OutputStream gzip(OutputStream os, int level) throws IOException {
+        return new GZIPOutputStream(os) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    private boolean isDone() {
+        return payload != null || discarded;
+    }
+
+    /**
+     * Moves the payload of a done recording to off heap chunks. Keeps it on heap
+     * if the allocator has no space left
+     */
+    boolean moveOffHeap(SlabAllocator allocator) {
+        Snapshot s = payload;
+        if (s == null || s.data == null) {
+            return false;
+        }
+        SlabAllocator.Payload p = allocator.store(s.data);
+        if (p == null) {
+            return false;
+        }
+        payload = new Snapshot(null, p, s.level);
+        return true;
+    }
+
+    /**
+     * Frees the off heap payload once the recording is evicted. Any render in
+     * progress completes before the chunks are reused. Heap payloads are left to
+     * the garbage collector
+     */
+    void releasePayload() {
+        Snapshot s = payload;
+        if (s != null && s.offHeap != null) {
+            s.offHeap.release();
+        }
+    }
+
+    /**
+     * Returns the off heap memory used by the payload
+     */
+    long getOffHeapSize() {
+        Snapshot s = payload;
+        return s != null && s.offHeap != null ? s.offHeap.capacity() : 0;
+    }
+
+    /**
+     * Returns the approximate heap retained by this recording. Once done this
+     * covers the heap payload or the off heap chunk index along with the request details which are kept
+     * around with it
+     */
+    public long getRetainedSize() {
+        long size = SHALLOW_SIZE;
+        size += Util.estimateSize(method) + Util.estimateSize(uri) + Util.estimateSize(requestId);
+        size += Util.estimateSize(summary);
+        Snapshot p = payload;
+        if (p != null) {
+            size += Snapshot.SHALLOW_SIZE;
+            if (p.data != null) {
+                size += Util.estimateArraySize(p.data.length);
+            } else if (p.offHeap != null) {
+                size += p.offHeap.getRetainedSize();
+            }
+        }
+        return size;
     }
 
     public String getUri() {
@@ -124,14 +351,136 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         return start;
     }
 
+    public long getTimeTakenNanos() {
+        return timeTakenNanos;
+    }
+
+    /**
+     * Sets the number of terms to be collected for the search index once done.
+     * Zero, the default, disables the collection
+     */
+    void setMaxSearchTerms(int maxSearchTerms) {
+        this.maxSearchTerms = maxSearchTerms;
+    }
+
+    /**
+     * Publishes the entries of this recording to the live subscribers as they are
+     * captured
+     */
+    void setLiveEvents(LiveEventHub liveEvents) {
+        this.liveEvents = liveEvents;
+        publish(LiveEventHub.START, jw -> {
+            jw.key("method").value(method);
+            jw.key("timestamp").value(start);
+        });
+    }
+
+    /**
+     * Enables the creation of a compact summary once done to be sent inline with
+     * the traced response
+     */
+    void enableSummary() {
+        this.summaryEnabled = true;
+    }
+
+    /**
+     * Returns the summary as compact JSON if enabled and the recording is done
+     */
+    @Nullable
+    String getSummary() {
+        return summary;
+    }
+
+    /**
+     * Returns the terms to index the recording with. Available once done
+     */
+    String[] getSearchTerms() {
+        return searchTerms;
+    }
+
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Returns the number of logs captured at ERROR level or with an exception
+     */
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Returns the number of log events at WARN level or above during the request,
+     * including those of loggers not covered by the tracer configs
+     */
+    public int getWarnCount() {
+        return warnCount;
+    }
+
+    /**
+     * Returns the time elapsed since the start of the recording
+     */
+    long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(currentOffset());
+    }
+
+    /**
+     * Switches the recording to tail mode in which only the given number of most
+     * recent log entries and queries are kept. Such a recording is only worth keeping
+     * if the request turns out to be slow or failing, see {@link #discard()}
+     */
+    void bufferTail(int maxEntries) {
+        this.maxTailEntries = Math.max(1, maxEntries);
+    }
+
+    boolean isTail() {
+        return maxTailEntries > 0;
+    }
+
+    /**
+     * Ends the recording without creating the payload and releases the captured
+     * entries
+     */
+    void discard() {
+        if (!isDone()) {
+            discarded = true;
+            publish(LiveEventHub.END, jw -> {
+                jw.key("time").value(getElapsedMillis());
+                jw.key("discarded").value(true);
+            });
+            release();
+        }
+    }
+
+    /**
+     * Returns the queries performed grouped by their shape and caller and lets go of
+     * them as they are only needed for aggregation. Available once the recording is done
+     */
+    public Collection<QueryHotspotDetector.ShapeStats> takeQueryStats() {
+        Collection<QueryHotspotDetector.ShapeStats> result = queryStats;
+        queryStats = Collections.emptyList();
+        return result;
+    }
+
     // ~---------------------------------------< Recording >
 
     @Override
     public void log(TracerConfig tc, Level level, String logger, FormattingTuple tuple) {
+        if (isDone()) {
+            // Recording is already done
+            return;
+        }
+        long offset = currentOffset();
         if (logger.startsWith(OAK_QUERY_PKG)) {
-            queryCollector.record(level, logger, tuple);
+            queryCollector.record(level, logger, tuple, offset);
         }
-        logs.add(new LogEntry(tc, level, logger, tuple));
+        if (Level.ERROR.equals(level) || tuple.getThrowable() != null) {
+            errorCount++;
+        }
+        LogEntry entry = new LogEntry(tc, level, logger, tuple, start, offset);
+        addTailBounded(logs, entry);
+        logCount++;
+        publish(LiveEventHub.LOG, entry);
     }
 
     @Override
@@ -141,19 +490,35 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
 
     @Override
     public void recordCategory(String loggerName) {
+        if (isDone()) {
+            return;
+        }
         loggerNames.add(loggerName);
     }
 
+    @Override
+    public void recordLevel(Level level) {
+        if (level != null && level.isGreaterOrEqual(Level.WARN) && !isDone()) {
+            warnCount++;
+        }
+    }
+
     public void done() {
         try {
-            if (json == null) {
-                json = toJSON();
-
-                // Let the tracker and other references go to
-                // not occupy memory
-                tracker = null;
-                queries.clear();
-                logs.clear();
+            if (!isDone()) {
+                payload = new Snapshot(toJSON(), null, compressionLevel);
+                if (maxSearchTerms > 0) {
+                    searchTerms = collectSearchTerms();
+                }
+                if (summaryEnabled) {
+                    summary = toSummary();
+                }
+                publish(LiveEventHub.END, jw -> {
+                    jw.key("time").value(timeTaken);
+                    jw.key("queryCount").value(queryCount);
+                    jw.key("errorCount").value(errorCount);
+                });
+                release();
             }
         } catch (UnsupportedEncodingException e) {
             log.warn("Error occurred while converting the log data for request {} to JSON", requestId, e);
@@ -166,23 +531,37 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         OutputStream os = baos;
         if (compress) {
-            os = new GZIPOutputStream(os);
+            os = gzip(os, compressionLevel);
         }
         OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
         JSONWriter jw = new JSONWriter(osw);
         jw.object();
         jw.key("method").value(method);
 
-        timeTaken = System.currentTimeMillis() - start;
+        timeTakenNanos = currentOffset();
+        timeTaken = TimeUnit.NANOSECONDS.toMillis(timeTakenNanos);
         jw.key("time").value(timeTaken);
+        jw.key("timeNanos").value(timeTakenNanos);
         jw.key("timestamp").value(start);
 
         addRequestProgressLogs(jw);
 
-        queryCollector.done();
+        queryCollector.done(timeTakenNanos);
+        QueryPlanAnalyzer.Summary planSummary = analyzePlans();
         addJson(jw, "queries", queries);
+        if (queryCount > queries.size()) {
+            jw.key("droppedQueries").value(queryCount - queries.size());
+        }
+        addQueryHotspots(jw);
+        jw.key("queryPlanSummary");
+        jw.object();
+        planSummary.toJson(jw);
+        jw.endObject();
 
         addJson(jw, "logs", logs);
+        if (logCount > logs.size()) {
+            jw.key("droppedLogs").value(logCount - logs.size());
+        }
         addLoggerNames(jw);
         jw.endObject();
         osw.flush();
@@ -190,6 +569,127 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         return baos.toByteArray();
     }
 
+    private void release() {
+        // Let the tracker and other references go to
+        // not occupy memory. The collections are replaced instead of
+        // cleared as a cleared ArrayList still holds on to its array
+        tracker = null;
+        queries = Collections.emptyList();
+        logs = Collections.emptyList();
+        loggerNames = Collections.emptySet();
+        queryCollector = null;
+        queryCallerFinder = null;
+    }
+
+    private String toSummary() throws IOException {
+        Map<String, Integer> logCounts = new HashMap<>();
+        for (LogEntry le : logs) {
+            logCounts.merge(le.logger, 1, Integer::sum);
+        }
+        List<Map.Entry<String, Integer>> topLoggers = new ArrayList<>(logCounts.entrySet());
+        topLoggers.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+
+        StringWriter sw = new StringWriter();
+        JSONWriter jw = new JSONWriter(sw);
+        jw.object();
+        jw.key("requestId").value(requestId);
+        jw.key("time").value(timeTaken);
+        jw.key("timeNanos").value(timeTakenNanos);
+        jw.key("queryCount").value(queryCount);
+        jw.key("errorCount").value(errorCount);
+        jw.key("logCount").value(logCount);
+        jw.key("topLoggers");
+        jw.object();
+        for (Map.Entry<String, Integer> e : topLoggers.subList(0, Math.min(SUMMARY_TOP_LOGGERS, topLoggers.size()))) {
+            jw.key(e.getKey()).value(e.getValue());
+        }
+        jw.endObject();
+        jw.endObject();
+        jw.flush();
+        return sw.toString();
+    }
+
+    private String[] collectSearchTerms() {
+        RecordingSearchIndex.TermCollector terms = new RecordingSearchIndex.TermCollector(maxSearchTerms);
+        terms.addUri(uri);
+        for (String name : loggerNames) {
+            terms.add(RecordingSearchIndex.LOGGER, name);
+        }
+        for (LogEntry le : logs) {
+            terms.add(RecordingSearchIndex.LOGGER, le.logger);
+            terms.addLog(le.level.levelStr, le.logger);
+        }
+        for (QueryEntry qe : queries) {
+            terms.addQuery(QueryNormalizer.normalize(qe.query), qe.query);
+        }
+        // Message text last as it has the most terms and is the least selective
+        for (LogEntry le : logs) {
+            if (terms.isFull()) {
+                break;
+            }
+            terms.addText(le.tuple.getMessage());
+        }
+        return terms.toArray();
+    }
+
+    private void publish(String type, JsonEntry entry) {
+        LiveEventHub hub = liveEvents;
+        if (hub == null || !hub.accepts(requestId, uri)) {
+            return;
+        }
+        try {
+            StringWriter sw = new StringWriter();
+            JSONWriter jw = new JSONWriter(sw);
+            jw.object();
+            jw.key("requestId").value(requestId);
+            jw.key("uri").value(uri);
+            entry.toJson(jw);
+            jw.endObject();
+            jw.flush();
+            hub.publish(requestId, uri, type, sw.toString());
+        } catch (IOException e) {
+            log.debug("Error occurred while publishing {} event for request {}", type, requestId, e);
+        }
+    }
+
+    private QueryPlanAnalyzer.Summary analyzePlans() {
+        QueryPlanAnalyzer.Summary summary = new QueryPlanAnalyzer.Summary();
+        for (QueryEntry qe : queries) {
+            qe.planInfo = QueryPlanAnalyzer.analyze(qe.plan);
+            summary.add(qe.planInfo);
+        }
+        return summary;
+    }
+
+    private void addQueryHotspots(JSONWriter jw) throws IOException {
+        QueryHotspotDetector detector = new QueryHotspotDetector(hotspotThreshold);
+        for (QueryEntry qe : queries) {
+            String plan = qe.planInfo != null ? qe.planInfo.describe() : null;
+            detector.add(qe.query, qe.caller, plan, qe.getTotalTime());
+        }
+        queryStats = new ArrayList<>(detector.getStats());
+
+        jw.key("queryHotspots");
+        jw.array();
+        for (QueryHotspotDetector.ShapeStats s : detector.getHotspots()) {
+            jw.object();
+            jw.key("shape").value(s.shape);
+            jw.key("caller").value(s.caller);
+            jw.key("count").value(s.count);
+            jw.key("totalTime").value(s.totalTime);
+            jw.endObject();
+        }
+        jw.endArray();
+    }
+
+    private static String intern(String s) {
+        return interner.intern(s);
+    }
+
+    private long currentOffset() {
+        return System.nanoTime() - startNanos;
+    }
+
     private void addLoggerNames(JSONWriter jw) throws IOException {
         List<String> sortedNames = new ArrayList<String>(loggerNames);
         Collections.sort(sortedNames);
@@ -217,7 +717,20 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         }
     }
 
-    private void addJson(JSONWriter jw, String name, List<? extends JsonEntry> entries) throws IOException {
+    /**
+     * Adds the entry. In tail mode the oldest entry gives way once the limit is
+     * reached, in a ring like manner
+     */
+    private <T> void addTailBounded(Collection<T> entries, T entry) {
+        if (maxTailEntries > 0 && entries.size() >= maxTailEntries) {
+            Iterator<T> itr = entries.iterator();
+            itr.next();
+            itr.remove();
+        }
+        entries.add(entry);
+    }
+
+    private void addJson(JSONWriter jw, String name, Collection<? extends JsonEntry> entries) throws IOException {
         jw.key(name);
         jw.array();
         for (JsonEntry je : entries) {
@@ -228,20 +741,99 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         jw.endArray();
     }
 
+    /**
+     * Returns a stream over the payload or null if the recording is not done or
+     * its off heap payload was already released
+     */
+    @Nullable
     private InputStream getInputStream(boolean compressed) throws IOException {
-        InputStream is = new ByteArrayInputStream(json);
+        OpenPayload p = openPayload();
+        return p != null ? p.getInputStream(compressed) : null;
+    }
+
+    /**
+     * Payload of a done recording along with the gzip level it is compressed with.
+     * Immutable so that a reader sees a consistent level, length and content
+     */
+    private static final class Snapshot {
+        static final int SHALLOW_SIZE = 24;
+
+        @Nullable
+        final byte[] data;
+
+        @Nullable
+        final SlabAllocator.Payload offHeap;
+
+        final int level;
+
+        Snapshot(@Nullable byte[] data, @Nullable SlabAllocator.Payload offHeap, int level) {
+            this.data = data;
+            this.offHeap = offHeap;
+            this.level = level;
+        }
+
+        int length() {
+            return data != null ? data.length : offHeap.length();
+        }
+
+        @Nullable
+        InputStream openStream() {
+            return data != null ? new ByteArrayInputStream(data) : offHeap.openStream();
+        }
+    }
 
-        if (compressed) {
-            if (!compress) {
+    /**
+     * Payload opened for reading. Holds on to the off heap chunks till closed
+     */
+    final class OpenPayload implements Closeable {
+        private final Snapshot snapshot;
+        private final InputStream stream;
+
+        private OpenPayload(Snapshot snapshot, InputStream stream) {
+            this.snapshot = snapshot;
+            this.stream = stream;
+        }
+
+        int getCompressionLevel() {
+            return snapshot.level;
+        }
+
+        /**
+         * Returns the size of the payload as stored
+         */
+        int length() {
+            return snapshot.length();
+        }
+
+        /**
+         * Writes the given byte range of the payload. A negative length writes till
+         * the end. Can only be called once
+         */
+        boolean write(OutputStream os, boolean compressed, long offset, long length) throws IOException {
+            IOUtils.copyLarge(getInputStream(compressed), os, offset, length);
+            return true;
+        }
+
+        InputStream getInputStream(boolean compressed) throws IOException {
+            if (compressed && !compress) {
+                stream.close();
                 throw new IllegalArgumentException("Cannot provide compressed response with compression disabled");
             }
-            return is;
+            if (compressed || !compress) {
+                return stream;
+            }
+            try {
+                return new GZIPInputStream(stream);
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
         }
 
-        if (compress) {
-            is = new GZIPInputStream(is);
+        @Override
+        public void close() throws IOException {
+            stream.close();
         }
-        return is;
     }
 
     @Override
@@ -258,15 +850,20 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         final String logger;
         final FormattingTuple tuple;
         final String[] params;
-        final long timestamp = System.currentTimeMillis();
+        final long timestamp;
+        final long offset;
         final List<StackTraceElement> caller;
 
-        private LogEntry(TracerConfig tc, Level level, String logger, FormattingTuple tuple) {
+        private LogEntry(TracerConfig tc, Level level, String logger, FormattingTuple tuple, long start, long offset) {
             this.level = level != null ? level : Level.INFO;
             this.logger = logger;
             this.tuple = tuple;
             this.params = getParams(tuple);
             this.caller = getCallerData(tc);
+            this.offset = offset;
+            // Wall clock time is derived from the monotonic offset so that entries
+            // are always ordered consistently with the timeline
+            this.timestamp = start + TimeUnit.NANOSECONDS.toMillis(offset);
         }
 
         private static List<StackTraceElement> getCallerData(TracerConfig tc) {
@@ -304,6 +901,7 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         @Override
         public void toJson(JSONWriter jw) throws IOException {
             jw.key("timestamp").value(timestamp);
+            jw.key("offset").value(offset);
             jw.key("level").value(level.levelStr);
             jw.key("logger").value(logger);
             jw.key("message").value(tuple.getMessage());
@@ -338,11 +936,45 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         final String query;
         final String plan;
         final String caller;
+        /**
+         * Offset in nanos at which the query was parsed
+         */
+        final long startOffset;
+        /**
+         * Offset in nanos at which the query plan was logged
+         */
+        final long endOffset;
+        /**
+         * Offset in nanos of the next query package log event after the plan. This
+         * approximates the time spent in executing the query and iterating over the
+         * result before any other query activity happened
+         */
+        final long nextOffset;
+        /**
+         * Determined while finalizing the recording
+         */
+        QueryPlanAnalyzer.PlanInfo planInfo;
 
-        private QueryEntry(String query, String plan, String caller) {
+        private QueryEntry(
+                String query, String plan, String caller, long startOffset, long endOffset, long nextOffset) {
             this.query = query;
             this.plan = plan;
             this.caller = caller;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.nextOffset = nextOffset;
+        }
+
+        long getDuration() {
+            return endOffset - startOffset;
+        }
+
+        /**
+         * Time from parsing the query till the next query event i.e. including
+         * the approximated execution time
+         */
+        long getTotalTime() {
+            return nextOffset - startOffset;
         }
 
         @Override
@@ -350,6 +982,16 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
             jw.key("query").value(query);
             jw.key("plan").value(plan);
             jw.key("caller").value(caller);
+            jw.key("start").value(startOffset);
+            jw.key("end").value(endOffset);
+            jw.key("duration").value(getDuration());
+            jw.key("untilNext").value(nextOffset - endOffset);
+            if (planInfo != null) {
+                jw.key("planInfo");
+                jw.object();
+                planInfo.toJson(jw);
+                jw.endObject();
+            }
         }
     }
 
@@ -357,17 +999,20 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         String query;
         String plan;
         String caller;
+        long queryOffset;
+        long planOffset;
         int subPlans = 0;
 
-        public void record(Level level, String logger, FormattingTuple tuple) {
+        public void record(Level level, String logger, FormattingTuple tuple, long offset) {
             // Assuming in a series of log statement from query package we see 'query'
             // and then 'plan' then once both are not null then it means that one query
             // execution is complete and we push the entry and reset the state
             // This is done as we do not have a definitive way to determine when
             // a given query processing is done
-            attemptQueryEntry();
+            attemptQueryEntry(offset);
 
-            // TODO Query time. Change Oak to provide this information via some
+            // Query time is approximated from the offsets of the parse and plan
+            // log statements. Change Oak to provide this information via some
             // dedicated Audit logging such that below reliance on impl details
             // can be avoided
             String msg = tuple.getMessage();
@@ -379,6 +1024,7 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
                             && args.length == 2) {
                         // LOG.debug("Parsing {} statement: {}", language, statement);
                         query = nullSafeString(args[1]);
+                        queryOffset = offset;
                         caller = determineCaller();
                     }
                 }
@@ -389,6 +1035,7 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
                         // logDebug("query execute " + statement);
                         if (subPlans == 0) {
                             plan = msg.substring("query plan ".length());
+                            planOffset = offset;
                         } else {
                             subPlans--;
                         }
@@ -397,6 +1044,7 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
                             && args.length > 0) {
                         // LOG.debug("query union plan {}", getPlan());
                         plan = nullSafeString(args[0]);
+                        planOffset = offset;
 
                         // Determine number of sub-queries in this UNION query so they can be ignored
                         int unionCount = count(plan, "*/ union ");
@@ -412,7 +1060,7 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
             StackTraceElement caller =
                     queryCallerFinder.determineCaller(Thread.currentThread().getStackTrace());
             if (caller != null) {
-                return caller.toString();
+                return intern(caller.toString());
             }
             return null;
         }
@@ -420,17 +1068,28 @@ class JSONRecording implements Recording, Comparable<JSONRecording> {
         /**
          * Checks if both plan and query are determined. If yes then pushes them to list
          * and resets the state.
+         *
+         * @param offset offset of the current event which marks the end of the pending query
          */
-        public void attemptQueryEntry() {
+        public void attemptQueryEntry(long offset) {
             if (query != null && plan != null) {
-                queries.add(new QueryEntry(nullSafeTrim(query), nullSafeTrim(plan), caller));
+                QueryEntry entry = new QueryEntry(
+                        intern(nullSafeTrim(query)),
+                        intern(nullSafeTrim(plan)),
+                        caller,
+                        queryOffset,
+                        planOffset,
+                        offset);
+                addTailBounded(queries, entry);
+                queryCount++;
+                publish(LiveEventHub.QUERY, entry);
                 plan = query = null;
             }
         }
 
-        public void done() {
+        public void done(long offset) {
             // Push any last pending entry i.e. last query
-            attemptQueryEntry();
+            attemptQueryEntry(offset);
         }
     }
 }
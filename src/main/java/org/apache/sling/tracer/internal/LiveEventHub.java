@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Fans out the events of in flight recordings to the subscribers of the live
+ * endpoint. Each subscriber has its own bounded buffer. Publishing never blocks
+ * the traced request: if a subscriber does not keep up its buffer fills up and
+ * further events for it are dropped and counted.
+ *
+ * Without subscribers publishing costs a volatile read, so recordings check
+ * {@link #accepts(String, String)} before building the event
+ */
+class LiveEventHub {
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    static final String START = "start";
+    static final String LOG = "log";
+    static final String QUERY = "query";
+    static final String END = "end";
+
+    static final class Event {
+        final long id;
+        final String type;
+        final String data;
+
+        Event(long id, String type, String data) {
+            this.id = id;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong eventCounter = new AtomicLong();
+
+    private final int maxSubscribers;
+
+    private final int bufferSize;
+
+    private volatile boolean closed;
+
+    LiveEventHub(int maxSubscribers, int bufferSize) {
+        this.maxSubscribers = maxSubscribers;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns a new subscriber for the events of the recordings matching the given
+     * filters or null if the maximum number of subscribers is reached
+     *
+     * @param requestId if not null only events of the recording with this id are passed
+     * @param uriPrefix if not null only events of recordings whose uri starts with it are passed
+     */
+    @Nullable
+    synchronized Subscriber subscribe(@Nullable String requestId, @Nullable String uriPrefix) {
+        if (closed || subscribers.size() >= maxSubscribers) {
+            return null;
+        }
+        Subscriber s = new Subscriber(requestId, uriPrefix, bufferSize);
+        subscribers.add(s);
+        return s;
+    }
+
+    /**
+     * Returns true if any subscriber is interested in the events of given recording
+     */
+    boolean accepts(String requestId, String uri) {
+        if (subscribers.isEmpty()) {
+            return false;
+        }
+        for (Subscriber s : subscribers) {
+            if (s.accepts(requestId, uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void publish(String requestId, String uri, String type, String data) {
+        Event event = null;
+        for (Subscriber s : subscribers) {
+            if (s.accepts(requestId, uri)) {
+                if (event == null) {
+                    event = new Event(eventCounter.incrementAndGet(), type, data);
+                }
+                s.offer(event);
+            }
+        }
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Closes all subscribers. Subscribers waiting for events notice it on their
+     * next poll
+     */
+    synchronized void close() {
+        closed = true;
+        for (Subscriber s : subscribers) {
+            s.close();
+        }
+    }
+
+    class Subscriber implements AutoCloseable {
+        private final String requestId;
+        private final String uriPrefix;
+        private final ArrayBlockingQueue<Event> buffer;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean closed;
+
+        private Subscriber(String requestId, String uriPrefix, int bufferSize) {
+            this.requestId = requestId;
+            this.uriPrefix = uriPrefix;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        boolean accepts(String requestId, String uri) {
+            if (this.requestId != null && !this.requestId.equals(requestId)) {
+                return false;
+            }
+            return uriPrefix == null || (uri != null && uri.startsWith(uriPrefix));
+        }
+
+        private void offer(Event event) {
+            if (!buffer.offer(event)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        /**
+         * Waits up to the given time for the next event. Returns null on timeout or
+         * once closed
+         */
+        @Nullable
+        Event poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (closed) {
+                return null;
+            }
+            return buffer.poll(timeout, unit);
+        }
+
+        /**
+         * Returns the number of events dropped since last call
+         */
+        long takeDropped() {
+            return dropped.getAndSet(0);
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            subscribers.remove(this);
+        }
+    }
+}
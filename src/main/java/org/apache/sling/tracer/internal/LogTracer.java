@@ -18,6 +18,9 @@
  */
 package org.apache.sling.tracer.internal;
 
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -35,8 +38,10 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
@@ -86,6 +91,12 @@ public class LogTracer {
 
     public static final String HEADER_TRACER = "Sling-Tracers";
 
+    /**
+     * Response header set if the request asked for tracing but is served without it.
+     * The value is the limit which was reached i.e. rate or concurrency
+     */
+    public static final String HEADER_TRACER_REJECTED = "Sling-Tracer-Rejected";
+
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(LogTracer.class);
 
     private final Map<String, TracerSet> tracers = new HashMap<String, TracerSet>();
@@ -105,41 +116,73 @@ public class LogTracer {
     @Nullable
     private TracerLogServlet logServlet;
 
+    private final TracerMetrics metrics = new TracerMetrics();
+
+    private ServiceRegistration metricsRegistration;
+
     private TraceLogRecorder recorder = TraceLogRecorder.DEFAULT;
 
+    @Nullable
+    private RequestSampler sampler;
+
+    @Nullable
+    private AutoTracer autoTracer;
+
+    private TracerAdmission admission = TracerAdmission.UNLIMITED;
+
+    private Level adHocMinLevel = Level.TRACE;
+
     @Activate
     private void activate(Configuration config, BundleContext context) {
         this.bundleContext = context;
         initializeTracerSet(config);
+        this.sampler = RequestSampler.create(config);
+        this.autoTracer = AutoTracer.create(config);
+        this.admission = new TracerAdmission(config.admissionMaxPerSecond(), config.admissionMaxConcurrent());
+        this.adHocMinLevel = Level.toLevel(config.adHocMinLevel(), Level.TRACE);
         boolean enabled = config.enabled();
         if (enabled) {
             registerFilters(context);
             boolean servletEnabled = config.servletEnabled();
 
             if (servletEnabled) {
-                int cacheSize = config.recordingCacheSizeInMB();
-                long cacheDuration = config.recordingCacheDurationInSecs();
-                boolean compressionEnabled = config.recordingCompressionEnabled();
-                boolean gzipResponse = config.gzipResponse();
-
-                this.logServlet =
-                        new TracerLogServlet(context, cacheSize, cacheDuration, compressionEnabled, gzipResponse);
+                this.logServlet = new TracerLogServlet(context, config, metrics);
+                registerMetrics(context);
                 recorder = logServlet;
                 LOG.info(
                         "Tracer recoding enabled with cacheSize {} MB, expiry {} secs, compression {}, gzip response {}",
-                        cacheSize,
-                        cacheDuration,
-                        compressionEnabled,
-                        gzipResponse);
+                        logServlet.getCacheSizeInMB(),
+                        logServlet.getCacheDurationInSecs(),
+                        logServlet.isCompressRecording(),
+                        logServlet.isGzipResponse());
             }
             LOG.info("Log tracer enabled. Required filters registered. Tracer servlet enabled {}", servletEnabled);
+            if (sampler != null) {
+                LOG.info(
+                        "Sampling requests at rate {} with tracer sets [{}], at most {} per second",
+                        config.samplingRate(),
+                        sampler.getTracerSets(),
+                        config.samplingMaxPerSecond());
+            }
+            if (autoTracer != null) {
+                LOG.info(
+                        "Auto tracing the next {} requests of paths with p95 latency above {} ms with tracer sets [{}]",
+                        config.autoTraceRequests(),
+                        config.autoTraceThresholdMillis(),
+                        autoTracer.getTracerSets());
+            }
         }
     }
 
     @Deactivate
     private void deactivate() {
         if (logServlet != null) {
-            logServlet.unregister();
+            logServlet.close();
+        }
+
+        if (metricsRegistration != null) {
+            metricsRegistration.unregister();
+            metricsRegistration = null;
         }
 
         if (slingFilterRegistration != null) {
@@ -189,12 +232,45 @@ public class LogTracer {
 
         if (tracerConfig != null) {
             TracerSet ts = new TracerSet("custom", tracerConfig);
-            configs.addAll(ts.getConfigs());
+            for (TracerConfig tc : ts.getConfigs()) {
+                configs.add(applyMinLevel(tc));
+            }
         }
 
         return new TracerContext(configs.toArray(new TracerConfig[configs.size()]), recording);
     }
 
+    /**
+     * Admits a request to be traced. An admitted request must release the admission
+     * once done. Every rejection is counted. If the client asked for tracing the
+     * rejection is also reported via the response header, else the request is
+     * silently not traced
+     */
+    private boolean admit(HttpServletResponse response, boolean requested) {
+        TracerAdmission.Rejection rejection = admission.tryAcquire();
+        if (rejection == null) {
+            return true;
+        }
+        metrics.rejected.increment();
+        if (requested) {
+            LOG.debug("Tracing of request rejected as the {} limit is reached", rejection);
+            if (!response.isCommitted()) {
+                response.setHeader(HEADER_TRACER_REJECTED, rejection.name().toLowerCase(Locale.ENGLISH));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Raises the level of a config passed by the client to the configured minimum
+     */
+    private TracerConfig applyMinLevel(TracerConfig tc) {
+        if (tc.getLevel().isGreaterOrEqual(adHocMinLevel)) {
+            return tc;
+        }
+        return new TracerConfig(tc.getLoggerName(), adHocMinLevel, tc.getCallerReporter());
+    }
+
     private void initializeTracerSet(Configuration config) {
         for (String tracerSetConfig : config.tracerSets()) {
             TracerSet tc = new TracerSet(tracerSetConfig);
@@ -202,6 +278,18 @@ public class LogTracer {
         }
     }
 
+    private void registerMetrics(BundleContext context) {
+        Dictionary<String, Object> props = new Hashtable<String, Object>();
+        props.put("jmx.objectname", "org.apache.sling:type=" + TracerStatsMBean.TYPE + ",name=LogTracer");
+        props.put(Constants.SERVICE_DESCRIPTION, "Log Tracer recording statistics");
+        try {
+            metricsRegistration = context.registerService(
+                    DynamicMBean.class.getName(), new StandardMBean(metrics, TracerStatsMBean.class), props);
+        } catch (NotCompliantMBeanException e) {
+            LOG.warn("Error occurred while registering the tracer statistics MBean", e);
+        }
+    }
+
     private void registerFilters(BundleContext context) {
         Dictionary<String, Object> slingFilterProps = new Hashtable<String, Object>();
         slingFilterProps.put("sling.filter.scope", "REQUEST");
@@ -284,23 +372,69 @@ public class LogTracer {
             // parameter map
 
             HttpServletRequest httpRequest = (HttpServletRequest) servletRequest;
+            HttpServletResponse httpResponse = (HttpServletResponse) servletResponse;
+            String tracerSetNames = trimToNull(httpRequest.getHeader(HEADER_TRACER));
+            String tracerConfig = trimToNull(httpRequest.getHeader(HEADER_TRACER_CONFIG));
+            long start = System.nanoTime();
+
+            LongAdder selected = null;
+            boolean autoTraced = false;
+            if (tracerSetNames == null && tracerConfig == null) {
+                if (autoTracer != null && autoTracer.shouldTrace(httpRequest.getRequestURI())) {
+                    tracerSetNames = autoTracer.getTracerSets();
+                    selected = metrics.autoTraced;
+                    autoTraced = true;
+                } else if (sampler != null && sampler.sample(httpRequest.getRequestURI())) {
+                    tracerSetNames = sampler.getTracerSets();
+                    selected = metrics.sampled;
+                }
+            }
 
-            // Invoke at start so that header can be set. If done at end there is a chance
-            // that response is committed
-            Recording recording = recorder.startRecording(httpRequest, (HttpServletResponse) servletResponse);
-
-            TracerContext tracerContext = getTracerContext(
-                    httpRequest.getHeader(HEADER_TRACER), httpRequest.getHeader(HEADER_TRACER_CONFIG), recording);
+            boolean admitted = false;
+            Recording recording = Recording.NOOP;
+            TracerContext tracerContext = null;
+            // The container maps an exception to an error status only after the filters
+            boolean failed = true;
             try {
+                // Decide before recording so that a rejected request costs nothing more
+                boolean tracing = tracerSetNames != null || tracerConfig != null;
+                if (tracing) {
+                    admitted = admit(httpResponse, selected == null);
+                }
+
+                // Invoke at start so that header can be set. If done at end there is a chance
+                // that response is committed
+                if (tracing && !admitted) {
+                    tracerSetNames = null;
+                    tracerConfig = null;
+                } else if (autoTraced) {
+                    selected.increment();
+                    recording = recorder.startAutoTracedRecording(httpRequest, httpResponse);
+                } else if (selected != null) {
+                    selected.increment();
+                    recording = recorder.startSampledRecording(httpRequest, httpResponse);
+                } else {
+                    recording = recorder.startRecording(httpRequest, httpResponse);
+                }
+
+                tracerContext = getTracerContext(tracerSetNames, tracerConfig, recording);
                 if (tracerContext != null) {
                     enableCollector(tracerContext);
                 }
                 filterChain.doFilter(servletRequest, servletResponse);
+                failed = false;
             } finally {
                 if (tracerContext != null) {
                     disableCollector();
                 }
-                recorder.endRecording(httpRequest, recording);
+                if (admitted) {
+                    admission.release();
+                }
+                recorder.endRecording(httpRequest, recording, failed);
+                if (autoTracer != null) {
+                    autoTracer.record(
+                            httpRequest.getRequestURI(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
             }
         }
     }
@@ -318,20 +452,23 @@ public class LogTracer {
             Recording recording = recorder.getRecordingForRequest(slingRequest);
             recording.registerTracker(slingRequest.getRequestProgressTracker());
             boolean createdContext = false;
+            boolean admitted = false;
 
-            // Check if the global filter created context based on HTTP headers. If not
-            // then check from request params
-            if (tracerContext == null) {
-                tracerContext = getTracerContext(
-                        slingRequest.getParameter(PARAM_TRACER),
-                        slingRequest.getParameter(PARAM_TRACER_CONFIG),
-                        recording);
-                if (tracerContext != null) {
-                    createdContext = true;
+            try {
+                // Check if the global filter created context based on HTTP headers. If not
+                // then check from request params
+                if (tracerContext == null) {
+                    String tracerSetNames = trimToNull(slingRequest.getParameter(PARAM_TRACER));
+                    String tracerConfig = trimToNull(slingRequest.getParameter(PARAM_TRACER_CONFIG));
+                    if (tracerSetNames != null || tracerConfig != null) {
+                        admitted = admit((HttpServletResponse) servletResponse, true);
+                    }
+                    if (admitted) {
+                        tracerContext = getTracerContext(tracerSetNames, tracerConfig, recording);
+                        createdContext = true;
+                    }
                 }
-            }
 
-            try {
                 if (tracerContext != null) {
                     tracerContext.registerProgressTracker(slingRequest.getRequestProgressTracker());
 
@@ -349,6 +486,9 @@ public class LogTracer {
                         disableCollector();
                     }
                 }
+                if (admitted) {
+                    admission.release();
+                }
             }
         }
     }
@@ -365,6 +505,12 @@ public class LogTracer {
             tracer.recordCategory(logger.getName());
 
             TracerConfig tc = tracer.findMatchingConfig(logger.getName(), level);
+
+            // Level probes like isWarnEnabled() pass a null format and events below the
+            // logger level are dropped unless a tracer accepts them, so neither count
+            if (format != null && (tc != null || level.isGreaterOrEqual(logger.getEffectiveLevel()))) {
+                tracer.recordLevel(level);
+            }
             if (tc != null) {
                 if (format == null) {
                     return FilterReply.ACCEPT;
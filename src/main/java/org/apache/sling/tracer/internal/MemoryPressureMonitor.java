@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the occupancy of the heap pools after garbage collection. Once it crosses
+ * the high watermark the pressure handler is invoked so that memory held by the
+ * tracer can be released, and the tracer is considered to be under pressure until
+ * the occupancy after collection drops below the low watermark again.
+ *
+ * The JVM only notifies when the collection usage threshold gets exceeded so the
+ * drop below the low watermark is determined lazily in {@link #isUnderPressure()}.
+ *
+ * The threshold of a pool is JVM wide state. It is only set for pools which have
+ * no threshold yet and reset on close only if nobody changed it meanwhile. Pools
+ * with a threshold set by someone else are left alone and a notification is only
+ * acted upon if the occupancy actually crossed the high watermark
+ */
+class MemoryPressureMonitor implements NotificationListener {
+    private static final Logger log = LoggerFactory.getLogger(MemoryPressureMonitor.class);
+
+    private static final NotificationFilter THRESHOLD_EXCEEDED =
+            n -> MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(n.getType());
+
+    private final List<MemoryPoolMXBean> pools;
+    /**
+     * Threshold set by this monitor per pool. 0 if the pool is left alone
+     */
+    private final long[] thresholds;
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    private final Runnable pressureHandler;
+
+    @Nullable
+    private final NotificationEmitter emitter;
+
+    private volatile boolean underPressure;
+
+    /**
+     * Creates a monitor for the heap pools of this JVM which support collection
+     * usage thresholds i.e. the tenured pools. Returns null if high watermark is
+     * not positive or no such pool exists
+     */
+    @Nullable
+    static MemoryPressureMonitor create(int highWatermark, int lowWatermark, Runnable pressureHandler) {
+        if (highWatermark <= 0) {
+            return null;
+        }
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP
+                    && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+        if (pools.isEmpty()) {
+            log.info(
+                    "No heap memory pool supports collection usage thresholds. Memory pressure would not be monitored");
+            return null;
+        }
+        return new MemoryPressureMonitor(pools, highWatermark, lowWatermark, pressureHandler, (NotificationEmitter)
+                ManagementFactory.getMemoryMXBean());
+    }
+
+    MemoryPressureMonitor(
+            List<MemoryPoolMXBean> pools,
+            int highWatermark,
+            int lowWatermark,
+            Runnable pressureHandler,
+            @Nullable NotificationEmitter emitter) {
+        this.pools = pools;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.pressureHandler = pressureHandler;
+        this.emitter = emitter;
+        this.thresholds = new long[pools.size()];
+        for (int i = 0; i < pools.size(); i++) {
+            MemoryPoolMXBean pool = pools.get(i);
+            if (pool.getCollectionUsageThreshold() > 0) {
+                log.info(
+                        "Collection usage threshold of memory pool {} is already set. Leaving it as is",
+                        pool.getName());
+                continue;
+            }
+            thresholds[i] = pool.getUsage().getMax() * highWatermark / 100;
+            pool.setCollectionUsageThreshold(thresholds[i]);
+        }
+        if (emitter != null) {
+            emitter.addNotificationListener(this, THRESHOLD_EXCEEDED, null);
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        // Threshold might be set by someone else to a lower value
+        if (THRESHOLD_EXCEEDED.isNotificationEnabled(notification) && isAboveWatermark(highWatermark)) {
+            thresholdExceeded();
+        }
+    }
+
+    void thresholdExceeded() {
+        if (!underPressure) {
+            log.warn(
+                    "Heap occupancy after collection exceeded the high watermark. Releasing cached recordings "
+                            + "and pausing new recordings till it drops below {}%",
+                    lowWatermark);
+        }
+        underPressure = true;
+        try {
+            pressureHandler.run();
+        } catch (RuntimeException e) {
+            log.warn("Error occurred while releasing memory on memory pressure", e);
+        }
+    }
+
+    /**
+     * Returns true if heap occupancy crossed the high watermark and has not yet
+     * dropped below the low watermark
+     */
+    boolean isUnderPressure() {
+        if (underPressure && !isAboveWatermark(lowWatermark)) {
+            underPressure = false;
+            log.info("Heap occupancy after collection dropped below {}%. Resuming recordings", lowWatermark);
+        }
+        return underPressure;
+    }
+
+    private boolean isAboveWatermark(int watermark) {
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            long max = pool.getUsage().getMax();
+            if (usage != null && max > 0 && usage.getUsed() * 100 >= max * watermark) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void close() {
+        if (emitter != null) {
+            try {
+                emitter.removeNotificationListener(this, THRESHOLD_EXCEEDED, null);
+            } catch (ListenerNotFoundException ignore) {
+                // Already removed
+            }
+        }
+        for (int i = 0; i < pools.size(); i++) {
+            MemoryPoolMXBean pool = pools.get(i);
+            if (thresholds[i] > 0 && pool.getCollectionUsageThreshold() == thresholds[i]) {
+                pool.setCollectionUsageThreshold(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Groups the queries performed within a request by their shape and caller. Same
+ * query shape being executed many times from the same caller is a typical N+1
+ * pattern where a component queries once per item instead of once for all items
+ */
+class QueryHotspotDetector {
+    private final Map<Key, ShapeStats> stats = new LinkedHashMap<>();
+    private final int threshold;
+
+    /**
+     * @param threshold minimum number of executions of same shape from same caller
+     *                  for it to be reported as a hotspot
+     */
+    public QueryHotspotDetector(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public void add(String query, String caller, String plan, long timeTaken) {
+        String shape = StringInterner.INSTANCE.intern(QueryNormalizer.normalize(query));
+        Key key = new Key(shape, caller);
+        ShapeStats s = stats.get(key);
+        if (s == null) {
+            s = new ShapeStats(shape, caller);
+            stats.put(key, s);
+        }
+        s.count++;
+        s.totalTime += timeTaken;
+        if (plan != null) {
+            plan = StringInterner.INSTANCE.intern(plan);
+            Integer c = s.plans.get(plan);
+            s.plans.put(plan, c == null ? 1 : c + 1);
+        }
+    }
+
+    /**
+     * Returns the shapes executed at least threshold number of times sorted by
+     * count in descending order
+     */
+    public List<ShapeStats> getHotspots() {
+        List<ShapeStats> result = new ArrayList<>();
+        if (threshold <= 0) {
+            return result;
+        }
+        for (ShapeStats s : stats.values()) {
+            if (s.count >= threshold) {
+                result.add(s);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    public Collection<ShapeStats> getStats() {
+        return Collections.unmodifiableCollection(stats.values());
+    }
+
+    static class ShapeStats implements Comparable<ShapeStats> {
+        final String shape;
+        final String caller;
+        int count;
+        /**
+         * Total time in nanos
+         */
+        long totalTime;
+        /**
+         * Plan descriptions to the number of executions using that plan
+         */
+        final Map<String, Integer> plans = new LinkedHashMap<>(2);
+
+        ShapeStats(String shape, String caller) {
+            this.shape = shape;
+            this.caller = caller;
+        }
+
+        @Override
+        public int compareTo(ShapeStats o) {
+            int result = Integer.compare(o.count, count);
+            if (result == 0) {
+                result = Long.compare(o.totalTime, totalTime);
+            }
+            return result;
+        }
+    }
+
+    private static final class Key {
+        final String shape;
+        final String caller;
+
+        Key(String shape, String caller) {
+            this.shape = shape;
+            this.caller = caller;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Objects.equals(shape, key.shape) && Objects.equals(caller, key.caller);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(shape, caller);
+        }
+    }
+}
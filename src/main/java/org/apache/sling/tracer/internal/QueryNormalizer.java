@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+/**
+ * Reduces a query statement to its shape i.e. the statement with all literal
+ * values and bind variables replaced by a '?'. Queries which only differ in the
+ * values used would then map to the same shape. For e.g. both of the following
+ *
+ * <pre>
+ *     SELECT * FROM [nt:base] WHERE [foo] = 'a' AND ISDESCENDANTNODE([/content/a])
+ *     SELECT * FROM [nt:base] WHERE [foo] = 'b' AND ISDESCENDANTNODE([/content/b])
+ * </pre>
+ *
+ * map to {@code SELECT * FROM [nt:base] WHERE [foo] = ? AND ISDESCENDANTNODE([?])}.
+ * For XPath queries the explicit path steps following {@code /jcr:root} are
+ * treated as a literal.
+ */
+final class QueryNormalizer {
+    private static final String XPATH_ROOT = "/jcr:root";
+
+    private QueryNormalizer() {}
+
+    static String normalize(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        int len = query.length();
+        StringBuilder sb = new StringBuilder(len);
+        int i = 0;
+        if (query.startsWith(XPATH_ROOT)) {
+            sb.append(XPATH_ROOT);
+            i = XPATH_ROOT.length();
+            int pathEnd = skipXPathSteps(query, i);
+            if (pathEnd > i) {
+                sb.append("/?");
+                i = pathEnd;
+            }
+        }
+
+        boolean lastSpace = false;
+        while (i < len) {
+            char c = query.charAt(i);
+            int next;
+            if (c == '\'' || c == '"') {
+                next = skipQuoted(query, i, c);
+            } else if (c == '$' && i + 1 < len && Character.isJavaIdentifierStart(query.charAt(i + 1))) {
+                next = skipIdentifier(query, i + 1);
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(query.charAt(i - 1)))) {
+                next = skipNumber(query, i);
+            } else if (c == '[' && i + 1 < len && query.charAt(i + 1) == '/') {
+                // Path used in SQL-2 like ISDESCENDANTNODE([/content/foo])
+                int close = query.indexOf(']', i);
+                sb.append("[?]");
+                lastSpace = false;
+                i = close < 0 ? len : close + 1;
+                continue;
+            } else if (Character.isWhitespace(c)) {
+                if (!lastSpace && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                lastSpace = true;
+                i++;
+                continue;
+            } else {
+                sb.append(c);
+                lastSpace = false;
+                i++;
+                continue;
+            }
+            sb.append('?');
+            lastSpace = false;
+            i = next;
+        }
+
+        if (lastSpace && sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Skips the explicit path steps like '/content/foo' which follow '/jcr:root'.
+     * Stops at descendant axis, wildcard, predicates and function calls like
+     * 'element(*, cq:Page)'
+     */
+    private static int skipXPathSteps(String query, int start) {
+        int len = query.length();
+        int i = start;
+        while (i + 1 < len && query.charAt(i) == '/' && isPathChar(query.charAt(i + 1))) {
+            int segmentEnd = i + 1;
+            while (segmentEnd < len && isPathChar(query.charAt(segmentEnd))) {
+                segmentEnd++;
+            }
+            if (segmentEnd < len && query.charAt(segmentEnd) == '(') {
+                break;
+            }
+            i = segmentEnd;
+        }
+        return i;
+    }
+
+    private static int skipQuoted(String query, int start, char quote) {
+        int len = query.length();
+        int i = start + 1;
+        while (i < len) {
+            if (query.charAt(i) == quote) {
+                // Quotes are escaped by doubling them
+                if (i + 1 < len && query.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return len;
+    }
+
+    private static int skipIdentifier(String query, int start) {
+        int i = start;
+        while (i < query.length() && Character.isJavaIdentifierPart(query.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipNumber(String query, int start) {
+        int i = start;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isDigit(c) || c == '.') {
+                i++;
+            } else if ((c == 'e' || c == 'E') && i + 1 < query.length() && Character.isDigit(query.charAt(i + 1))) {
+                i += 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == ':' || c == '-' || c == '.';
+    }
+
+    private static boolean isPathChar(char c) {
+        return Character.isLetterOrDigit(c) || c == ':' || c == '_' || c == '-' || c == '.';
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.felix.utils.json.JSONWriter;
+
+import static org.apache.sling.tracer.internal.Util.count;
+
+/**
+ * Analyzes the Oak query plans. Oak logs the plan of each selector within a comment
+ * following the selector like
+ *
+ * <pre>
+ *     [nt:base] as [a] /* traverse "/content//*" where ... *&#47;
+ *     [cq:Page] as [a] /* lucene:cqPageLucene(/oak:index/cqPageLucene) +:ancestors:/content ... *&#47;
+ *     [nt:base] as [a] /* property uuid(/oak:index/uuid) jcr:uuid = 'x' ... *&#47;
+ * </pre>
+ *
+ * For union queries the plans of each sub query are separated by 'union'
+ */
+final class QueryPlanAnalyzer {
+    static final String TRAVERSE = "traverse";
+    private static final String AGGREGATE = "aggregate ";
+    private static final String COMMENT_START = "/*";
+    private static final String COMMENT_END = "*/";
+
+    enum PlanType {
+        /**
+         * At least one selector traverses the repository
+         */
+        TRAVERSAL,
+        /**
+         * All selectors make use of some index
+         */
+        INDEXED,
+        /**
+         * Plan could not be understood
+         */
+        UNKNOWN
+    }
+
+    private QueryPlanAnalyzer() {}
+
+    static PlanInfo analyze(String plan) {
+        if (plan == null || plan.isEmpty()) {
+            return new PlanInfo(PlanType.UNKNOWN, 0, 0, Collections.<String>emptyList());
+        }
+
+        List<String> indexes = new ArrayList<>();
+        boolean traversal = false;
+        int selectors = 0;
+        int start = plan.indexOf(COMMENT_START);
+        while (start >= 0) {
+            int end = plan.indexOf(COMMENT_END, start + COMMENT_START.length());
+            if (end < 0) {
+                break;
+            }
+            String selectorPlan =
+                    plan.substring(start + COMMENT_START.length(), end).trim();
+            selectors++;
+            String index = determineIndex(selectorPlan);
+            if (TRAVERSE.equals(index)) {
+                traversal = true;
+            } else if (index != null && !indexes.contains(index)) {
+                indexes.add(index);
+            }
+            start = plan.indexOf(COMMENT_START, end + COMMENT_END.length());
+        }
+
+        PlanType type = PlanType.UNKNOWN;
+        if (traversal) {
+            type = PlanType.TRAVERSAL;
+        } else if (!indexes.isEmpty()) {
+            type = PlanType.INDEXED;
+        }
+        return new PlanInfo(type, count(plan, "*/ union "), selectors, indexes);
+    }
+
+    /**
+     * Determines the index used from the plan of a single selector. The index is
+     * reported as 'type:name' like 'lucene:cqPageLucene' or 'property:uuid'. If
+     * the index does not have a name then just the type is returned
+     */
+    static String determineIndex(String selectorPlan) {
+        String p = selectorPlan;
+        if (p.startsWith(AGGREGATE)) {
+            p = p.substring(AGGREGATE.length()).trim();
+        }
+        if (p.isEmpty()) {
+            return null;
+        }
+
+        String first = token(p, 0);
+        if (TRAVERSE.equals(first)) {
+            return TRAVERSE;
+        }
+
+        // lucene:cqPageLucene(/oak:index/cqPageLucene) or elasticsearch:foo(/oak:index/foo)
+        int colon = first.indexOf(':');
+        if (colon > 0) {
+            return first.substring(0, colon) + ":" + stripPath(first.substring(colon + 1));
+        }
+
+        // property uuid(/oak:index/uuid) jcr:uuid = 'x'
+        String second = token(p, first.length());
+        int paren = second.indexOf('(');
+        if (paren > 0 && second.indexOf(":index/") > 0) {
+            return first + ":" + second.substring(0, paren);
+        }
+        return first;
+    }
+
+    private static String token(String s, int from) {
+        int start = from;
+        while (start < s.length() && Character.isWhitespace(s.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < s.length() && !Character.isWhitespace(s.charAt(end))) {
+            end++;
+        }
+        return s.substring(start, end);
+    }
+
+    private static String stripPath(String name) {
+        int paren = name.indexOf('(');
+        return paren >= 0 ? name.substring(0, paren) : name;
+    }
+
+    static class PlanInfo {
+        final PlanType type;
+        final int unionCount;
+        final int selectorCount;
+        final List<String> indexes;
+
+        PlanInfo(PlanType type, int unionCount, int selectorCount, List<String> indexes) {
+            this.type = type;
+            this.unionCount = unionCount;
+            this.selectorCount = selectorCount;
+            this.indexes = indexes;
+        }
+
+        boolean isUnion() {
+            return unionCount > 0;
+        }
+
+        /**
+         * Returns a compact description of the plan which is independent of the values
+         * used in the query. For e.g. 'traversal' or 'indexed[lucene:a,property:b]'
+         */
+        String describe() {
+            String name = type.name().toLowerCase(Locale.ENGLISH);
+            if (indexes.isEmpty()) {
+                return name;
+            }
+            return name + indexes.toString().replace(" ", "");
+        }
+
+        void toJson(JSONWriter jw) throws IOException {
+            jw.key("type").value(type.name().toLowerCase(Locale.ENGLISH));
+            jw.key("selectors").value(selectorCount);
+            jw.key("unionCount").value(unionCount);
+            jw.key("indexes");
+            jw.array();
+            for (String index : indexes) {
+                jw.value(index);
+            }
+            jw.endArray();
+        }
+    }
+
+    /**
+     * Summary of the plans of all queries performed within a request
+     */
+    static class Summary {
+        private final int[] typeCounts = new int[PlanType.values().length];
+        private final Map<String, Integer> indexCounts = new TreeMap<>();
+        private int queryCount;
+        private int unionCount;
+
+        void add(PlanInfo info) {
+            queryCount++;
+            typeCounts[info.type.ordinal()]++;
+            if (info.isUnion()) {
+                unionCount++;
+            }
+            for (String index : info.indexes) {
+                Integer c = indexCounts.get(index);
+                indexCounts.put(index, c == null ? 1 : c + 1);
+            }
+        }
+
+        int getCount(PlanType type) {
+            return typeCounts[type.ordinal()];
+        }
+
+        void toJson(JSONWriter jw) throws IOException {
+            jw.key("queries").value(queryCount);
+            for (PlanType type : PlanType.values()) {
+                jw.key(type.name().toLowerCase(Locale.ENGLISH)).value(getCount(type));
+            }
+            jw.key("union").value(unionCount);
+            jw.key("indexes");
+            jw.object();
+            for (Map.Entry<String, Integer> e : indexCounts.entrySet()) {
+                jw.key(e.getKey()).value(e.getValue());
+            }
+            jw.endObject();
+        }
+    }
+}
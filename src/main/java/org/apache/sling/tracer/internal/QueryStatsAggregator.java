@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.felix.utils.json.JSONWriter;
+
+/**
+ * Aggregates the query statistics across recordings. The statistics are kept in a
+ * ring of time buckets covering the configured window. Each bucket is bounded in the
+ * number of query shapes it tracks and each shape in the number of callers and plans.
+ *
+ * The statistics are independent of the recordings themselves and hence are retained
+ * even if the recordings get evicted from the cache
+ */
+class QueryStatsAggregator {
+    static final int BUCKET_COUNT = 15;
+    static final int MAX_CALLERS = 10;
+    static final int MAX_PLANS = 5;
+    static final String OTHER = "<other>";
+
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKET_COUNT);
+    private final long bucketDurationInMillis;
+    private final int maxShapes;
+
+    public QueryStatsAggregator(long windowInSecs, int maxShapes) {
+        this.bucketDurationInMillis = Math.max(1, TimeUnit.SECONDS.toMillis(windowInSecs) / BUCKET_COUNT);
+        this.maxShapes = maxShapes;
+    }
+
+    public void add(Iterable<QueryHotspotDetector.ShapeStats> stats) {
+        add(stats, System.currentTimeMillis());
+    }
+
+    void add(Iterable<QueryHotspotDetector.ShapeStats> stats, long now) {
+        Bucket bucket = null;
+        // Same shape may be reported multiple times for different callers
+        Set<String> seenShapes = new HashSet<>();
+        for (QueryHotspotDetector.ShapeStats s : stats) {
+            if (bucket == null) {
+                bucket = currentBucket(now);
+            }
+            bucket.add(s, seenShapes.add(s.shape));
+        }
+    }
+
+    /**
+     * Collects the statistics for the time window
+     *
+     * @param windowInMillis the duration in the past for which stats need to be collected
+     * @param limit max number of shapes to return
+     * @return shape statistics sorted by execution count in descending order
+     */
+    public List<ShapeAggregate> getStats(long windowInMillis, int limit) {
+        return getStats(windowInMillis, limit, System.currentTimeMillis());
+    }
+
+    List<ShapeAggregate> getStats(long windowInMillis, int limit, long now) {
+        long currentEpoch = now / bucketDurationInMillis;
+        long oldestEpoch = Math.max((now - windowInMillis) / bucketDurationInMillis, currentEpoch - BUCKET_COUNT + 1);
+        Map<String, ShapeAggregate> merged = new HashMap<>();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            Bucket b = buckets.get(i);
+            if (b == null || b.epoch > currentEpoch || b.epoch < oldestEpoch) {
+                continue;
+            }
+            for (ShapeAggregate sa : b.shapes.values()) {
+                ShapeAggregate result = merged.get(sa.shape);
+                if (result == null) {
+                    result = new ShapeAggregate(sa.shape);
+                    merged.put(sa.shape, result);
+                }
+                result.merge(sa);
+            }
+        }
+
+        List<ShapeAggregate> result = new ArrayList<>(merged.values());
+        Collections.sort(result, new Comparator<ShapeAggregate>() {
+            @Override
+            public int compare(ShapeAggregate o1, ShapeAggregate o2) {
+                return Long.compare(o2.count, o1.count);
+            }
+        });
+        if (result.size() > limit) {
+            result = result.subList(0, Math.max(0, limit));
+        }
+        return result;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, null);
+        }
+    }
+
+    public void toJson(JSONWriter jw, long windowInMillis, int limit) throws IOException {
+        jw.object();
+        jw.key("window").value(windowInMillis);
+        jw.key("shapes");
+        jw.array();
+        for (ShapeAggregate sa : getStats(windowInMillis, limit)) {
+            sa.toJson(jw);
+        }
+        jw.endArray();
+        jw.endObject();
+    }
+
+    private Bucket currentBucket(long now) {
+        long epoch = now / bucketDurationInMillis;
+        int index = (int) (epoch % BUCKET_COUNT);
+        while (true) {
+            Bucket b = buckets.get(index);
+            if (b != null && b.epoch == epoch) {
+                return b;
+            }
+            if (b != null && b.epoch > epoch) {
+                // Clock moved backwards. Just use the newer bucket
+                return b;
+            }
+            Bucket newBucket = new Bucket(epoch, maxShapes);
+            if (buckets.compareAndSet(index, b, newBucket)) {
+                return newBucket;
+            }
+        }
+    }
+
+    private static class Bucket {
+        final long epoch;
+        final int maxShapes;
+        final Map<String, ShapeAggregate> shapes = new ConcurrentHashMap<>();
+
+        Bucket(long epoch, int maxShapes) {
+            this.epoch = epoch;
+            this.maxShapes = maxShapes;
+        }
+
+        void add(QueryHotspotDetector.ShapeStats stats, boolean newRequest) {
+            ShapeAggregate sa = shapes.get(stats.shape);
+            if (sa == null) {
+                String shape = shapes.size() < maxShapes ? stats.shape : OTHER;
+                sa = shapes.computeIfAbsent(shape, ShapeAggregate::new);
+            }
+            sa.add(stats, newRequest);
+        }
+    }
+
+    static class ShapeAggregate {
+        final String shape;
+        long count;
+        long totalTime;
+        long requests;
+        final Map<String, Long> callers = new LinkedHashMap<>();
+        final Map<String, Long> plans = new LinkedHashMap<>();
+
+        ShapeAggregate(String shape) {
+            this.shape = shape;
+        }
+
+        synchronized void add(QueryHotspotDetector.ShapeStats stats, boolean newRequest) {
+            count += stats.count;
+            if (newRequest) {
+                requests++;
+            }
+            totalTime += stats.totalTime;
+            increment(callers, String.valueOf(stats.caller), stats.count, MAX_CALLERS);
+            for (Map.Entry<String, Integer> e : stats.plans.entrySet()) {
+                increment(plans, e.getKey(), e.getValue(), MAX_PLANS);
+            }
+        }
+
+        synchronized void merge(ShapeAggregate other) {
+            synchronized (other) {
+                count += other.count;
+                totalTime += other.totalTime;
+                requests += other.requests;
+                for (Map.Entry<String, Long> e : other.callers.entrySet()) {
+                    increment(callers, e.getKey(), e.getValue(), Integer.MAX_VALUE);
+                }
+                for (Map.Entry<String, Long> e : other.plans.entrySet()) {
+                    increment(plans, e.getKey(), e.getValue(), Integer.MAX_VALUE);
+                }
+            }
+        }
+
+        synchronized void toJson(JSONWriter jw) throws IOException {
+            jw.object();
+            jw.key("shape").value(shape);
+            jw.key("count").value(count);
+            jw.key("totalTime").value(totalTime);
+            jw.key("requests").value(requests);
+            addCounts(jw, "callers", callers);
+            addCounts(jw, "plans", plans);
+            jw.endObject();
+        }
+
+        private static void addCounts(JSONWriter jw, String name, Map<String, Long> counts) throws IOException {
+            jw.key(name);
+            jw.object();
+            for (Map.Entry<String, Long> e : counts.entrySet()) {
+                jw.key(e.getKey()).value(e.getValue());
+            }
+            jw.endObject();
+        }
+
+        private static void increment(Map<String, Long> counts, String key, long delta, int max) {
+            if (!counts.containsKey(key) && counts.size() >= max) {
+                key = OTHER;
+            }
+            Long c = counts.get(key);
+            counts.put(key, c == null ? delta : c + delta);
+        }
+    }
+}
@@ -32,6 +32,9 @@ interface Recording {
 
         @Override
         public void recordCategory(String loggerName) {}
+
+        @Override
+        public void recordLevel(Level level) {}
     };
 
     void log(TracerConfig tc, Level level, String logger, FormattingTuple tuple);
@@ -44,4 +47,10 @@ interface Recording {
     void registerTracker(RequestProgressTracker tracker);
 
     void recordCategory(String loggerName);
+
+    /**
+     * Records the level of a log event of the current request irrespective of it
+     * being covered by the tracer configs
+     */
+    void recordLevel(Level level);
 }
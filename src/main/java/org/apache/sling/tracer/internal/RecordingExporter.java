@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.servlet.http.HttpServletRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.felix.utils.json.JSONWriter;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Streams the recordings matching the request filters as newline delimited JSON.
+ * Each line is an object with the request details and the recording itself under
+ * the {@code recording} key.
+ *
+ * For gzip responses each line is written as a sequence of gzip members. Per RFC
+ * 1952 the concatenated members decompress to the concatenated content, so the
+ * compressed payloads are written as is with only the small line prefix and
+ * suffix being compressed.
+ */
+class RecordingExporter {
+    static final String CONTENT_TYPE = "application/x-ndjson";
+
+    static final String PARAM_FROM = "from";
+
+    static final String PARAM_TO = "to";
+
+    static final String PARAM_URI = "uri";
+
+    static final String PARAM_MIN_DURATION = "minDuration";
+
+    static final String PARAM_ID = "id";
+
+    private static final byte[] LINE_END = "}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final long from;
+
+    private final long to;
+
+    @Nullable
+    private final String uriPrefix;
+
+    private final long minDuration;
+
+    @Nullable
+    private final Set<String> ids;
+
+    RecordingExporter(long from, long to, @Nullable String uriPrefix, long minDuration, @Nullable Set<String> ids) {
+        this.from = from;
+        this.to = to;
+        this.uriPrefix = uriPrefix;
+        this.minDuration = minDuration;
+        this.ids = ids;
+    }
+
+    /**
+     * Creates an exporter for the filters passed as request parameters. Ids can be
+     * passed as repeated parameters or comma separated
+     */
+    static RecordingExporter fromRequest(HttpServletRequest request) {
+        Set<String> ids = null;
+        String[] idParams = request.getParameterValues(PARAM_ID);
+        if (idParams != null) {
+            ids = new HashSet<>();
+            for (String p : idParams) {
+                for (String id : p.split(",")) {
+                    String trimmed = Util.trimToNull(id);
+                    if (trimmed != null) {
+                        ids.add(trimmed);
+                    }
+                }
+            }
+        }
+        return new RecordingExporter(
+                TracerLogServlet.getLongParameter(request, PARAM_FROM, 0),
+                TracerLogServlet.getLongParameter(request, PARAM_TO, Long.MAX_VALUE),
+                Util.trimToNull(request.getParameter(PARAM_URI)),
+                TracerLogServlet.getLongParameter(request, PARAM_MIN_DURATION, 0),
+                ids);
+    }
+
+    boolean matches(String requestId, @Nullable String uri, long start, long timeTaken) {
+        return start >= from
+                && start <= to
+                && timeTaken >= minDuration
+                && (uriPrefix == null || (uri != null && uri.startsWith(uriPrefix)))
+                && (ids == null || ids.contains(requestId));
+    }
+
+    /**
+     * Writes the matching recordings from the cache and then those only present in
+     * the store, each ordered by start time. Returns the number of recordings written
+     */
+    int export(TracerLogServlet.BoundedCache cache, @Nullable RecordingStore store, OutputStream os, boolean gzip)
+            throws IOException {
+        Set<String> exported = new HashSet<>();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        for (JSONRecording r : cache.range(from, to, false, 0, Integer.MAX_VALUE)) {
+            if (!matches(r.getRequestId(), r.getUri(), r.getStart(), r.getTimeTaken())) {
+                continue;
+            }
+            payload.reset();
+            boolean compressed = r.isCompressed() && gzip;
+            if (r.render(payload, compressed)) {
+                writeLine(
+                        os,
+                        gzip,
+                        prefix(r.getRequestId(), r.getUri(), r.getStart(), r.getTimeTaken()),
+                        payload,
+                        compressed);
+                exported.add(r.getRequestId());
+            }
+        }
+
+        if (store != null) {
+            List<RecordingStore.StoredRecording> stored = new ArrayList<>();
+            for (RecordingStore.StoredRecording s : store.list()) {
+                if (!exported.contains(s.requestId) && matches(s.requestId, s.uri, s.start, s.timeTaken)) {
+                    stored.add(s);
+                }
+            }
+            stored.sort(Comparator.comparingLong(s -> s.start));
+            for (RecordingStore.StoredRecording s : stored) {
+                payload.reset();
+                boolean compressed = s.compressed && gzip;
+                if (store.render(s, payload, compressed)) {
+                    writeLine(os, gzip, prefix(s.requestId, s.uri, s.start, s.timeTaken), payload, compressed);
+                    exported.add(s.requestId);
+                }
+            }
+        }
+        os.flush();
+        return exported.size();
+    }
+
+    /**
+     * Writes a line. The payload is buffered beforehand so that a recording which
+     * got evicted while being read does not leave a partial line behind
+     */
+    private static void writeLine(
+            OutputStream os, boolean gzip, byte[] prefix, ByteArrayOutputStream payload, boolean payloadCompressed)
+            throws IOException {
+        if (!gzip) {
+            os.write(prefix);
+            payload.writeTo(os);
+            os.write(LINE_END);
+            return;
+        }
+        writeMember(os, prefix);
+        if (payloadCompressed) {
+            payload.writeTo(os);
+        } else {
+            writeMember(os, payload.toByteArray());
+        }
+        writeMember(os, LINE_END);
+    }
+
+    private static void writeMember(OutputStream os, byte[] data) throws IOException {
+        try (GZIPOutputStream gz = new GZIPOutputStream(CloseShieldOutputStream.wrap(os), Math.max(512, data.length))) {
+            gz.write(data);
+        }
+    }
+
+    /**
+     * Builds the line start i.e. the request details object left open for the
+     * recording to follow
+     */
+    private static byte[] prefix(String requestId, @Nullable String uri, long start, long timeTaken)
+            throws IOException {
+        StringWriter sw = new StringWriter();
+        JSONWriter jw = new JSONWriter(sw);
+        jw.object();
+        jw.key("requestId").value(requestId);
+        jw.key("uri").value(uri);
+        jw.key("timestamp").value(start);
+        jw.key("time").value(timeTaken);
+        jw.endObject();
+        sw.flush();
+        StringBuffer sb = sw.getBuffer();
+        sb.setLength(sb.lastIndexOf("}"));
+        sb.append(",\"recording\":");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Secondary indexes over the cached recordings, one sorted set per supported
+ * {@link Sort} order. Listings page through the index in order without copying
+ * or sorting the cached recordings and without taking any cache lock.
+ *
+ * Keys are immutable snapshots of the sorted attributes, so a recording whose
+ * size changes is removed and added again with a new key
+ */
+class RecordingIndex {
+    enum Sort {
+        START(Comparator.comparingLong(k -> k.start)),
+        DURATION(Comparator.comparingLong(k -> k.timeTaken)),
+        SIZE(Comparator.comparingLong(k -> k.size)),
+        URI(Comparator.comparing((Key k) -> k.uri).thenComparingLong(k -> k.start));
+
+        final Comparator<Key> comparator;
+
+        Sort(Comparator<Key> comparator) {
+            // Request id as tie breaker as distinct recordings may sort equal otherwise
+            this.comparator = comparator.thenComparing(k -> k.requestId);
+        }
+
+        /**
+         * Returns the sort order for the given name ignoring case or the default
+         * if the name is null or unknown
+         */
+        static Sort fromName(@Nullable String name, Sort defaultSort) {
+            if (name != null) {
+                try {
+                    return valueOf(name.toUpperCase(Locale.ENGLISH));
+                } catch (IllegalArgumentException ignore) {
+                    // Fall back to default
+                }
+            }
+            return defaultSort;
+        }
+    }
+
+    static final class Key {
+        final JSONRecording recording;
+        final String requestId;
+        final String uri;
+        final long start;
+        final long timeTaken;
+        final long size;
+
+        /**
+         * Creates a key used as bound for range lookups by start time
+         */
+        private Key(long start, String requestId) {
+            this.recording = null;
+            this.requestId = requestId;
+            this.uri = "";
+            this.start = start;
+            this.timeTaken = 0;
+            this.size = 0;
+        }
+
+        Key(String requestId, JSONRecording recording) {
+            this.recording = recording;
+            this.requestId = requestId;
+            this.uri = String.valueOf(recording.getUri());
+            this.start = recording.getStart();
+            this.timeTaken = recording.getTimeTaken();
+            this.size = recording.size();
+        }
+    }
+
+    /**
+     * Sorts after any request id. Together with the empty id it bounds all keys
+     * with the same start
+     */
+    private static final String MAX_ID = String.valueOf(Character.MAX_VALUE);
+
+    private final Map<Sort, NavigableSet<Key>> indexes = new EnumMap<>(Sort.class);
+
+    RecordingIndex() {
+        for (Sort sort : Sort.values()) {
+            indexes.put(sort, new ConcurrentSkipListSet<>(sort.comparator));
+        }
+    }
+
+    void add(Key key) {
+        for (NavigableSet<Key> index : indexes.values()) {
+            index.add(key);
+        }
+    }
+
+    void remove(Key key) {
+        for (NavigableSet<Key> index : indexes.values()) {
+            index.remove(key);
+        }
+    }
+
+    void clear() {
+        for (NavigableSet<Key> index : indexes.values()) {
+            index.clear();
+        }
+    }
+
+    int size() {
+        return indexes.get(Sort.START).size();
+    }
+
+    /**
+     * Returns at most limit recordings in the given order skipping the first offset
+     * ones. Only the skipped and returned keys are visited
+     */
+    List<JSONRecording> page(Sort sort, boolean descending, int offset, int limit) {
+        return page(indexes.get(sort), descending, offset, limit);
+    }
+
+    /**
+     * Returns a page of the recordings started within the given time range, both
+     * inclusive, ordered by start. The range is looked up in the start index so
+     * recordings outside it are not visited
+     */
+    List<JSONRecording> range(long from, long to, boolean descending, int offset, int limit) {
+        if (from > to) {
+            return new ArrayList<>();
+        }
+        NavigableSet<Key> range = indexes.get(Sort.START).subSet(new Key(from, ""), true, new Key(to, MAX_ID), true);
+        return page(range, descending, offset, limit);
+    }
+
+    private static List<JSONRecording> page(NavigableSet<Key> index, boolean descending, int offset, int limit) {
+        Iterator<Key> itr = descending ? index.descendingIterator() : index.iterator();
+        for (int i = 0; i < offset && itr.hasNext(); i++) {
+            itr.next();
+        }
+        List<JSONRecording> result = new ArrayList<>(Math.min(limit, 64));
+        while (result.size() < limit && itr.hasNext()) {
+            result.add(itr.next().recording);
+        }
+        return result;
+    }
+}
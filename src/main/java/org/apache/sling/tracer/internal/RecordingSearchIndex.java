@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index mapping the terms of the cached recordings to their request
+ * ids. Terms are of the form {@code field:value} e.g. {@code logger:org.apache.sling.Foo},
+ * {@code log:WARN:org.apache.sling.Foo} or {@code path:/content/foo}. As terms are
+ * kept sorted any term can also be looked up by prefix which for loggers and
+ * paths covers the whole sub tree.
+ *
+ * Postings are added and removed by the cache along with the recording so the
+ * index is bounded by the cache. Lookups are lock free. Updates of a term are
+ * serialized by a lock striped by term, as dropping an empty posting set must not
+ * race with adding to it. The cache updates the index under its segment locks, so
+ * recordings of different segments only contend when their terms share a stripe
+ */
+class RecordingSearchIndex {
+    static final String URI = "uri";
+    static final String SEGMENT = "segment";
+    static final String LOGGER = "logger";
+    static final String LEVEL = "level";
+    static final String LOG = "log";
+    static final String QUERY = "query";
+    static final String PATH = "path";
+    static final String TEXT = "text";
+
+    static final char PREFIX_WILDCARD = '*';
+
+    /**
+     * Approximate heap used per posting i.e. the node in the posting set and the
+     * reference held by the entry
+     */
+    private static final int POSTING_OVERHEAD = 52;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final int MIN_TOKEN_LENGTH = 3;
+
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    private static final Pattern TOKEN = Pattern.compile("[\\p{L}\\p{N}][\\p{L}\\p{N}._\\-]*");
+
+    private static final Pattern QUOTED_PATH = Pattern.compile("'(/[^']*)'");
+
+    private static final Pattern XPATH_ROOT = Pattern.compile("/jcr:root((?:/[\\w:.\\-]+)+)");
+
+    private final ConcurrentSkipListMap<String, Set<String>> postings = new ConcurrentSkipListMap<>();
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    RecordingSearchIndex() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    void add(String requestId, String[] terms) {
+        for (String term : terms) {
+            synchronized (lockFor(term)) {
+                postings.computeIfAbsent(term, t -> ConcurrentHashMap.newKeySet())
+                        .add(requestId);
+            }
+        }
+    }
+
+    void remove(String requestId, String[] terms) {
+        for (String term : terms) {
+            synchronized (lockFor(term)) {
+                Set<String> ids = postings.get(term);
+                if (ids != null) {
+                    ids.remove(requestId);
+                    if (ids.isEmpty()) {
+                        postings.remove(term);
+                    }
+                }
+            }
+        }
+    }
+
+    void clear() {
+        postings.clear();
+    }
+
+    private Object lockFor(String term) {
+        int h = term.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (LOCK_STRIPES - 1)];
+    }
+
+    int termCount() {
+        return postings.size();
+    }
+
+    /**
+     * Returns the ids of recordings matching all the given queries. A query is a
+     * term or a term prefix ending with {@code *}. A query without field is looked
+     * up as message text
+     */
+    Set<String> search(Collection<String> queries) {
+        Set<String> result = null;
+        for (String query : queries) {
+            Set<String> ids = lookup(toTerm(query));
+            if (result == null) {
+                result = ids;
+            } else {
+                result.retainAll(ids);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result != null ? result : Collections.emptySet();
+    }
+
+    private Set<String> lookup(String term) {
+        Set<String> result = new HashSet<>();
+        if (term.isEmpty()) {
+            return result;
+        }
+        if (term.charAt(term.length() - 1) == PREFIX_WILDCARD) {
+            String prefix = term.substring(0, term.length() - 1);
+            for (Set<String> ids : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false)
+                    .values()) {
+                result.addAll(ids);
+            }
+        } else {
+            Set<String> ids = postings.get(term);
+            if (ids != null) {
+                result.addAll(ids);
+            }
+        }
+        return result;
+    }
+
+    static String toTerm(String query) {
+        query = query.trim();
+        int colon = query.indexOf(':');
+        if (colon > 0 && isField(query.substring(0, colon))) {
+            String field = query.substring(0, colon);
+            return TEXT.equals(field) ? field + ':' + query.substring(colon + 1).toLowerCase(Locale.ENGLISH) : query;
+        }
+        return term(TEXT, query.toLowerCase(Locale.ENGLISH));
+    }
+
+    private static boolean isField(String name) {
+        switch (name) {
+            case URI:
+            case SEGMENT:
+            case LOGGER:
+            case LEVEL:
+            case LOG:
+            case QUERY:
+            case PATH:
+            case TEXT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static String term(String field, String value) {
+        return field + ':' + value;
+    }
+
+    /**
+     * Returns the approximate heap used in the index for the given terms assuming
+     * the term strings are not shared with other recordings
+     */
+    static long estimateSize(String[] terms) {
+        long size = Util.estimateArraySize(terms.length * 4);
+        for (String term : terms) {
+            size += POSTING_OVERHEAD + Util.estimateSize(term);
+        }
+        return size;
+    }
+
+    /**
+     * Collects the distinct terms of a recording up to a limit. Terms added first
+     * win so the more selective ones should be added before message text
+     */
+    static class TermCollector {
+        private final int maxTerms;
+        private final Set<String> terms = new LinkedHashSet<>();
+
+        TermCollector(int maxTerms) {
+            this.maxTerms = maxTerms;
+        }
+
+        boolean isFull() {
+            return terms.size() >= maxTerms;
+        }
+
+        void add(String field, String value) {
+            if (value != null && !isFull()) {
+                terms.add(term(field, value));
+            }
+        }
+
+        void addUri(String uri) {
+            add(URI, uri);
+            if (uri != null) {
+                for (String segment : uri.split("/")) {
+                    if (!segment.isEmpty()) {
+                        add(SEGMENT, segment);
+                    }
+                }
+            }
+        }
+
+        void addLog(String level, String logger) {
+            add(LEVEL, level);
+            add(LOG, level + ':' + logger);
+        }
+
+        void addQuery(String shape, String query) {
+            add(QUERY, shape);
+            for (String path : extractPaths(query)) {
+                add(PATH, path);
+            }
+        }
+
+        void addText(String message) {
+            if (message == null) {
+                return;
+            }
+            Matcher m = TOKEN.matcher(message);
+            while (m.find() && !isFull()) {
+                String token = m.group();
+                if (token.length() >= MIN_TOKEN_LENGTH && token.length() <= MAX_TOKEN_LENGTH) {
+                    add(TEXT, token.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+
+        String[] toArray() {
+            return terms.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Extracts the repository paths referred in a query i.e. quoted absolute paths
+     * as used in SQL-2 path constraints and the path of XPath queries
+     */
+    static List<String> extractPaths(String query) {
+        List<String> paths = new ArrayList<>();
+        if (query == null) {
+            return paths;
+        }
+        Matcher m = QUOTED_PATH.matcher(query);
+        while (m.find()) {
+            paths.add(m.group(1));
+        }
+        m = XPATH_ROOT.matcher(query);
+        while (m.find()) {
+            paths.add(m.group(1));
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps completed recordings on disk so that they survive restarts and can be kept
+ * for much longer than the in memory cache allows. Recordings are appended to
+ * segment files and located through an in memory index by request id. Whole
+ * segments are deleted once the store exceeds its size or their recordings get
+ * older than the max age. Besides on writes, old segments are deleted by a
+ * periodic {@link #cleanup()} so that an idle store does not keep them forever.
+ *
+ * Each record consists of a header with the request details followed by the
+ * payload in the form it was recorded in i.e. possibly compressed. Stored payloads
+ * are served by transferring the file region to the response, and the index is
+ * rebuilt on startup by scanning the memory mapped segments.
+ */
+class RecordingStore {
+    private static final Logger log = LoggerFactory.getLogger(RecordingStore.class);
+
+    private static final int MAGIC = 0x534c5452; // SLTR
+
+    private static final byte VERSION = 1;
+
+    private static final int MAX_STRING_LENGTH = 2048;
+
+    private static final int QUEUE_SIZE = 100;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private final File dir;
+
+    private final long maxSize;
+
+    private final long segmentSize;
+
+    private final long maxAgeMillis;
+
+    private final ConcurrentHashMap<String, StoredRecording> index = new ConcurrentHashMap<>();
+
+    /**
+     * Segments in the order they were created. The last one is being appended to
+     */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * Kept outside of the store monitor so that reading it does not wait for a
+     * write in progress
+     */
+    private final AtomicLong totalSize = new AtomicLong();
+
+    private long nextSegmentId;
+
+    @Nullable
+    private FileChannel currentChannel;
+
+    RecordingStore(File dir, long maxSize, long segmentSize, long maxAgeMillis) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        this.maxAgeMillis = maxAgeMillis;
+        Files.createDirectories(dir.toPath());
+        recover();
+        this.writer = new ThreadPoolExecutor(
+                1,
+                1,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE),
+                r -> {
+                    Thread t = new Thread(r, "sling-tracer-recording-store");
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, e) -> log.debug("Recording store queue is full. Recording would not be stored"));
+    }
+
+    /**
+     * Schedules the done recording to be written to disk
+     */
+    void add(JSONRecording recording) {
+        writer.execute(() -> {
+            try {
+                write(recording);
+            } catch (IOException e) {
+                log.warn("Error occurred while storing recording {}", recording.getRequestId(), e);
+            }
+        });
+    }
+
+    /**
+     * Appends the recording to the current segment. Returns false if the recording
+     * has no payload i.e. it is not done or its payload was already released
+     */
+    synchronized boolean write(JSONRecording recording) throws IOException {
+        int length = recording.size();
+        if (length == 0) {
+            return false;
+        }
+        byte[] header = header(recording, length);
+        FileChannel channel = channelFor(header.length + length);
+        Segment segment = segments.getLast();
+        long recordStart = segment.size;
+        long payloadStart = recordStart + header.length;
+
+        channel.position(recordStart);
+        writeFully(channel, ByteBuffer.wrap(header));
+        OutputStream os = Channels.newOutputStream(channel);
+        if (!recording.render(os, recording.isCompressed()) || channel.position() != payloadStart + length) {
+            // Payload released meanwhile. Drop the partial record
+            channel.truncate(recordStart);
+            return false;
+        }
+
+        segment.size = payloadStart + length;
+        segment.newestStart = Math.max(segment.newestStart, recording.getStart());
+        totalSize.addAndGet(header.length + length);
+        index.put(
+                recording.getRequestId(),
+                new StoredRecording(
+                        recording.getRequestId(),
+                        recording.getUri(),
+                        recording.getStart(),
+                        recording.getTimeTaken(),
+                        recording.isCompressed(),
+                        segment,
+                        payloadStart,
+                        length));
+        deleteOldSegments(System.currentTimeMillis());
+        return true;
+    }
+
+    @Nullable
+    StoredRecording get(String requestId) {
+        StoredRecording stored = index.get(requestId);
+        if (stored != null && isExpired(stored.start, System.currentTimeMillis())) {
+            return null;
+        }
+        return stored;
+    }
+
+    /**
+     * Returns the stored recordings which are not expired
+     */
+    List<StoredRecording> list() {
+        long now = System.currentTimeMillis();
+        List<StoredRecording> result = new ArrayList<>(index.size());
+        for (StoredRecording stored : index.values()) {
+            if (!isExpired(stored.start, now)) {
+                result.add(stored);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the payload of the stored recording. With compressed as true the
+     * stored form is transferred as is without copying it through the heap.
+     * Returns false if the recording is no longer present on disk
+     */
+    boolean render(StoredRecording stored, OutputStream os, boolean compressed) throws IOException {
+        return render(stored, os, compressed, 0, -1);
+    }
+
+    /**
+     * Writes the given byte range of the stored form. A negative length writes
+     * till the end. Ranges are only supported when the stored form is written
+     */
+    boolean render(StoredRecording stored, OutputStream os, boolean compressed, long offset, long length)
+            throws IOException {
+        boolean raw = compressed || !stored.compressed;
+        if (!raw && (offset != 0 || length >= 0)) {
+            throw new IllegalArgumentException("Ranges are only supported for the stored form");
+        }
+        if (compressed && !stored.compressed) {
+            throw new IllegalArgumentException("Cannot provide compressed response for uncompressed recording");
+        }
+        try (FileChannel channel = FileChannel.open(stored.segment.file, StandardOpenOption.READ)) {
+            if (raw) {
+                WritableByteChannel target = Channels.newChannel(os);
+                long position = stored.offset + offset;
+                long remaining = length < 0 ? stored.length - offset : Math.min(length, stored.length - offset);
+                while (remaining > 0) {
+                    long n = channel.transferTo(position, remaining, target);
+                    if (n <= 0) {
+                        throw new IOException("Unexpected end of segment " + stored.segment.file);
+                    }
+                    position += n;
+                    remaining -= n;
+                }
+            } else {
+                MappedByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, stored.offset, stored.length);
+                try (InputStream is = new GZIPInputStream(new ByteBufferInputStream(payload))) {
+                    IOUtils.copyLarge(is, os);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Segment deleted meanwhile
+            return false;
+        }
+        return true;
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    long diskSize() {
+        return totalSize.get();
+    }
+
+    synchronized void clear() throws IOException {
+        while (!segments.isEmpty()) {
+            deleteSegment(segments.getFirst());
+        }
+    }
+
+    void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+                writer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            closeCurrent();
+        }
+    }
+
+    /**
+     * Deletes old segments. Invoked periodically so that expired recordings are
+     * removed from disk even if nothing gets written anymore
+     */
+    void cleanup() {
+        try {
+            deleteOldSegments(System.currentTimeMillis());
+        } catch (IOException e) {
+            log.warn("Error occurred while deleting old segments from {}", dir, e);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while the store exceeds its size, always keeping
+     * the current one, and segments whose recordings are all expired
+     */
+    synchronized void deleteOldSegments(long now) throws IOException {
+        while (!segments.isEmpty()) {
+            Segment oldest = segments.getFirst();
+            if ((segments.size() > 1 && totalSize.get() > maxSize) || isExpired(oldest.newestStart, now)) {
+                deleteSegment(oldest);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private boolean isExpired(long start, long now) {
+        return maxAgeMillis > 0 && start < now - maxAgeMillis;
+    }
+
+    private FileChannel channelFor(int recordSize) throws IOException {
+        Segment current = segments.peekLast();
+        if (current == null || (current.size > 0 && current.size + recordSize > segmentSize)) {
+            closeCurrent();
+            long id = nextSegmentId++;
+            current = new Segment(id, new File(dir, segmentName(id)).toPath());
+            segments.addLast(current);
+        }
+        if (currentChannel == null) {
+            currentChannel = FileChannel.open(
+                    current.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+        return currentChannel;
+    }
+
+    private void closeCurrent() {
+        if (currentChannel != null) {
+            try {
+                currentChannel.close();
+            } catch (IOException e) {
+                log.debug("Error occurred while closing segment", e);
+            }
+            currentChannel = null;
+        }
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        if (segment == segments.peekLast()) {
+            closeCurrent();
+        }
+        segments.remove(segment);
+        totalSize.addAndGet(-segment.size);
+        index.values().removeIf(s -> s.segment == segment);
+        Files.deleteIfExists(segment.file);
+    }
+
+    private void recover() throws IOException {
+        List<Segment> found = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Matcher m = SEGMENT_NAME.matcher(f.getName());
+                if (m.matches()) {
+                    found.add(new Segment(Long.parseLong(m.group(1)), f.toPath()));
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.id, b.id));
+        for (Segment segment : found) {
+            scan(segment);
+            segments.addLast(segment);
+            totalSize.addAndGet(segment.size);
+            nextSegmentId = segment.id + 1;
+        }
+        if (!found.isEmpty()) {
+            log.info("Recovered {} recordings from {} segments in {}", index.size(), found.size(), dir);
+        }
+        deleteOldSegments(System.currentTimeMillis());
+    }
+
+    /**
+     * Adds the records of the segment to the index. A partially written record at
+     * the end, as left by a crash, is truncated
+     */
+    private void scan(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            int valid = 0;
+            while (buffer.hasRemaining()) {
+                StoredRecording stored = readRecord(buffer, segment);
+                if (stored == null) {
+                    break;
+                }
+                index.put(stored.requestId, stored);
+                segment.newestStart = Math.max(segment.newestStart, stored.start);
+                valid = buffer.position();
+            }
+            if (valid < fileSize) {
+                log.info("Truncating {} bytes of incomplete records from {}", fileSize - valid, segment.file);
+                channel.truncate(valid);
+            }
+            segment.size = valid;
+        }
+    }
+
+    @Nullable
+    private static StoredRecording readRecord(ByteBuffer buffer, Segment segment) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+                return null;
+            }
+            String requestId = readString(buffer);
+            String uri = readString(buffer);
+            long start = buffer.getLong();
+            long timeTaken = buffer.getLong();
+            boolean compressed = buffer.get() != 0;
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return null;
+            }
+            long offset = buffer.position();
+            buffer.position(buffer.position() + length);
+            return new StoredRecording(requestId, uri, start, timeTaken, compressed, segment, offset, length);
+        } catch (RuntimeException e) {
+            // Buffer underflow or invalid string in a truncated record
+            return null;
+        }
+    }
+
+    private static byte[] header(JSONRecording recording, int length) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeString(out, recording.getRequestId());
+        writeString(out, recording.getUri());
+        out.writeLong(recording.getStart());
+        out.writeLong(recording.getTimeTaken());
+        out.writeBoolean(recording.isCompressed());
+        out.writeInt(length);
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String s) throws IOException {
+        String value = s == null ? "" : s;
+        if (value.length() > MAX_STRING_LENGTH) {
+            value = value.substring(0, MAX_STRING_LENGTH);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String segmentName(long id) {
+        return String.format("segment-%020d.dat", id);
+    }
+
+    private static class Segment {
+        final long id;
+        final Path file;
+        long size;
+        long newestStart;
+
+        Segment(long id, Path file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    static class StoredRecording {
+        final String requestId;
+        final String uri;
+        final long start;
+        final long timeTaken;
+        final boolean compressed;
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private StoredRecording(
+                String requestId,
+                String uri,
+                long start,
+                long timeTaken,
+                boolean compressed,
+                Segment segment,
+                long offset,
+                int length) {
+            this.requestId = requestId;
+            this.uri = uri;
+            this.start = start;
+            this.timeTaken = timeTaken;
+            this.compressed = compressed;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int size() {
+            return length;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
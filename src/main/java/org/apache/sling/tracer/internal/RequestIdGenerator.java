@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates time ordered request ids in the UUID version 7 layout i.e. 48 bits of
+ * milliseconds since epoch, a 12 bit sequence within the millisecond and 62 bits
+ * identifying the generator. Ids are generated with a single CAS without going
+ * through {@link SecureRandom} per id. As the hex form is fixed width the ids sort
+ * lexicographically in the order they were generated and embed their creation
+ * time.
+ *
+ * If more than 4096 ids are generated within a millisecond the sequence carries
+ * over into the timestamp which then runs ahead of the clock till it catches up,
+ * as permitted by RFC 9562
+ */
+class RequestIdGenerator {
+    static final RequestIdGenerator INSTANCE = new RequestIdGenerator(new SecureRandom().nextLong());
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private static final long VERSION = 0x7000L;
+
+    private static final long VARIANT = 0x8000_0000_0000_0000L;
+
+    private static final long NODE_MASK = 0x3fff_ffff_ffff_ffffL;
+
+    private static final int ID_LENGTH = 36;
+
+    /**
+     * Timestamp shifted by the sequence bits plus the sequence of the last id
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    private final long node;
+
+    RequestIdGenerator(long node) {
+        this.node = VARIANT | (node & NODE_MASK);
+    }
+
+    String next() {
+        return next(System.currentTimeMillis());
+    }
+
+    String next(long now) {
+        long candidate = now << SEQUENCE_BITS;
+        long prev;
+        long next;
+        do {
+            prev = state.get();
+            next = Math.max(candidate, prev + 1);
+        } while (!state.compareAndSet(prev, next));
+        return format(next >>> SEQUENCE_BITS, next & ((1 << SEQUENCE_BITS) - 1), node);
+    }
+
+    /**
+     * Returns the creation time embedded in the given id or -1 if the id was not
+     * generated in this format
+     */
+    static long timestampOf(String id) {
+        if (id == null
+                || id.length() != ID_LENGTH
+                || id.charAt(8) != '-'
+                || id.charAt(13) != '-'
+                || id.charAt(14) != '7') {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id.substring(0, 8) + id.substring(9, 13), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String format(long millis, long sequence, long lsb) {
+        long msb = (millis << 16) | VERSION | sequence;
+        StringBuilder sb = new StringBuilder(ID_LENGTH);
+        appendHex(sb, msb >>> 32, 8);
+        sb.append('-');
+        appendHex(sb, msb >>> 16, 4);
+        sb.append('-');
+        appendHex(sb, msb, 4);
+        sb.append('-');
+        appendHex(sb, lsb >>> 48, 4);
+        sb.append('-');
+        appendHex(sb, lsb, 12);
+        return sb.toString();
+    }
+
+    private static void appendHex(StringBuilder sb, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            sb.append(Character.forDigit((int) (value >>> (i * 4)) & 0xf, 16));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which requests get traced without the client asking for it. Each request
+ * is sampled with the rate of the first path pattern matching its path or else the
+ * global rate. Sampled requests are capped per second so that the overhead stays
+ * bounded irrespective of the traffic.
+ *
+ * Sampling uses {@link ThreadLocalRandom} and the cap a single CAS so the request
+ * path never blocks. A random draw above the highest configured rate rejects the
+ * request before any pattern is evaluated
+ */
+class RequestSampler {
+    private static final Logger log = LoggerFactory.getLogger(RequestSampler.class);
+
+    private static final int COUNT_BITS = 20;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    static final class PathRate {
+        final Pattern pattern;
+        final double rate;
+
+        PathRate(Pattern pattern, double rate) {
+            this.pattern = pattern;
+            this.rate = rate;
+        }
+    }
+
+    private final double rate;
+
+    private final List<PathRate> pathRates;
+
+    private final double maxRate;
+
+    private final int maxPerSecond;
+
+    private final String tracerSets;
+
+    /**
+     * Current second in the upper bits and the number of requests sampled within it
+     * in the lower {@link #COUNT_BITS} bits
+     */
+    private final AtomicLong window = new AtomicLong();
+
+    RequestSampler(double rate, List<PathRate> pathRates, int maxPerSecond, String tracerSets) {
+        this.rate = clamp(rate);
+        this.pathRates = pathRates;
+        this.maxPerSecond = (int) Math.min(maxPerSecond, COUNT_MASK);
+        this.tracerSets = tracerSets;
+        double max = this.rate;
+        for (PathRate pr : pathRates) {
+            max = Math.max(max, pr.rate);
+        }
+        this.maxRate = max;
+    }
+
+    /**
+     * Creates the sampler for the given config. Returns null if no rate is
+     * configured, no tracer set is configured or the cap is not positive
+     */
+    @Nullable
+    static RequestSampler create(Configuration config) {
+        String tracerSets = Util.trimToNull(config.samplingTracerSets());
+        List<PathRate> pathRates = parsePathRates(config.samplingPathRates());
+        RequestSampler sampler =
+                new RequestSampler(config.samplingRate(), pathRates, config.samplingMaxPerSecond(), tracerSets);
+        if (sampler.maxRate <= 0 || tracerSets == null || config.samplingMaxPerSecond() <= 0) {
+            return null;
+        }
+        return sampler;
+    }
+
+    /**
+     * Parses the path rates of the form {@code <regex>=<rate>}. Invalid entries are
+     * logged and ignored
+     */
+    static List<PathRate> parsePathRates(String[] configs) {
+        List<PathRate> result = new ArrayList<>();
+        if (configs == null) {
+            return result;
+        }
+        for (String config : configs) {
+            String trimmed = Util.trimToNull(config);
+            if (trimmed == null) {
+                continue;
+            }
+            int sep = trimmed.lastIndexOf('=');
+            try {
+                if (sep <= 0) {
+                    throw new IllegalArgumentException("Rate missing");
+                }
+                Pattern pattern = Pattern.compile(trimmed.substring(0, sep).trim());
+                double rate = Double.parseDouble(trimmed.substring(sep + 1).trim());
+                result.add(new PathRate(pattern, clamp(rate)));
+            } catch (IllegalArgumentException e) {
+                // Also covers PatternSyntaxException and NumberFormatException
+                log.warn("Ignoring invalid sampling path rate [{}]. Expected format <regex>=<rate>", config, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the request with given path should be traced
+     */
+    boolean sample(String path) {
+        return sample(path, ThreadLocalRandom.current().nextDouble(), System.currentTimeMillis());
+    }
+
+    boolean sample(String path, double random, long now) {
+        if (random >= maxRate || random >= rateFor(path)) {
+            return false;
+        }
+        return acquire(now / 1000);
+    }
+
+    double rateFor(String path) {
+        if (path != null) {
+            for (PathRate pr : pathRates) {
+                if (pr.pattern.matcher(path).matches()) {
+                    return pr.rate;
+                }
+            }
+        }
+        return rate;
+    }
+
+    private boolean acquire(long second) {
+        while (true) {
+            long current = window.get();
+            long count = (current >>> COUNT_BITS) == second ? current & COUNT_MASK : 0;
+            if (count >= maxPerSecond) {
+                return false;
+            }
+            if (window.compareAndSet(current, (second << COUNT_BITS) | (count + 1))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the comma separated names of tracer sets to apply to sampled requests
+     */
+    String getTracerSets() {
+        return tracerSets;
+    }
+
+    private static double clamp(double rate) {
+        return Double.isNaN(rate) ? 0 : Math.max(0, Math.min(1, rate));
+    }
+}
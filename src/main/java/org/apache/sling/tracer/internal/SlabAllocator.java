@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Allocates fixed size chunks out of direct {@link ByteBuffer} slabs to hold the
+ * payload of completed recordings outside of the Java heap. Slabs are allocated
+ * lazily up to the configured capacity and chunks are explicitly freed back to the
+ * allocator once the payload is released, so the direct memory is reused instead
+ * of waiting for the buffers to be garbage collected
+ */
+class SlabAllocator {
+    /**
+     * Every payload is charged for whole chunks so the last one is partly wasted. A
+     * compressed recording typically takes a few KB hence small chunks keep that waste
+     * well below the payload size at the cost of a larger chunk index per payload
+     */
+    static final int DEFAULT_CHUNK_SIZE = 2 * 1024;
+
+    static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private final int chunkSize;
+
+    private final int chunksPerSlab;
+
+    private final int slabSize;
+
+    private final int maxChunks;
+
+    private final ByteBuffer[] slabs;
+
+    /**
+     * Stack of chunks freed so far
+     */
+    private final int[] freeChunks;
+
+    private int freeCount;
+
+    /**
+     * Chunks at and above this index have never been handed out
+     */
+    private int nextChunk;
+
+    private boolean closed;
+
+    SlabAllocator(long capacity) {
+        this(capacity, DEFAULT_CHUNK_SIZE, DEFAULT_SLAB_SIZE);
+    }
+
+    SlabAllocator(long capacity, int chunkSize, int slabSize) {
+        if (chunkSize <= 0 || slabSize < chunkSize || slabSize % chunkSize != 0) {
+            throw new IllegalArgumentException(
+                    "Slab size " + slabSize + " must be a multiple of chunk size " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.slabSize = slabSize;
+        this.chunksPerSlab = slabSize / chunkSize;
+        int slabCount = (int) Math.min(Integer.MAX_VALUE / chunksPerSlab, Math.max(0, capacity / slabSize));
+        this.slabs = new ByteBuffer[slabCount];
+        this.maxChunks = slabCount * chunksPerSlab;
+        this.freeChunks = new int[maxChunks];
+    }
+
+    /**
+     * Copies the data to off heap chunks. Returns null if not enough space is left
+     * in which case the caller is expected to keep the data on heap
+     */
+    @Nullable
+    Payload store(byte[] data) {
+        int count = (data.length + chunkSize - 1) / chunkSize;
+        int[] chunks = allocate(count);
+        if (chunks == null) {
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkSize;
+            ByteBuffer chunk = chunk(chunks[i]);
+            if (chunk == null) {
+                // Closed meanwhile
+                return null;
+            }
+            chunk.put(data, offset, Math.min(chunkSize, data.length - offset));
+        }
+        return new Payload(chunks, data.length);
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (closed || freeCount + (maxChunks - nextChunk) < count) {
+            return null;
+        }
+        int[] chunks = new int[count];
+        int i = 0;
+        try {
+            for (; i < count; i++) {
+                if (freeCount > 0) {
+                    chunks[i] = freeChunks[--freeCount];
+                } else {
+                    int slab = nextChunk / chunksPerSlab;
+                    if (slabs[slab] == null) {
+                        slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+                    }
+                    chunks[i] = nextChunk++;
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            // Direct memory limit of the JVM reached
+            for (int j = 0; j < i; j++) {
+                freeChunks[freeCount++] = chunks[j];
+            }
+            return null;
+        }
+        return chunks;
+    }
+
+    private synchronized void free(int[] chunks) {
+        if (closed) {
+            return;
+        }
+        for (int c : chunks) {
+            freeChunks[freeCount++] = c;
+        }
+    }
+
+    /**
+     * Returns a buffer spanning the given chunk. A new buffer is returned on each
+     * call as the position is not shared between threads. Returns null once the
+     * allocator is closed
+     */
+    @Nullable
+    private ByteBuffer chunk(int index) {
+        ByteBuffer slab;
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            slab = slabs[index / chunksPerSlab];
+        }
+        ByteBuffer b = slab.duplicate();
+        int offset = (index % chunksPerSlab) * chunkSize;
+        b.limit(offset + chunkSize).position(offset);
+        return b.slice();
+    }
+
+    long getCapacity() {
+        return (long) maxChunks * chunkSize;
+    }
+
+    /**
+     * Returns the number of bytes in chunks currently handed out
+     */
+    synchronized long getUsed() {
+        return (long) (nextChunk - freeCount) * chunkSize;
+    }
+
+    /**
+     * Returns the direct memory allocated by the slabs so far
+     */
+    synchronized long getReserved() {
+        return (long) ((nextChunk + chunksPerSlab - 1) / chunksPerSlab) * slabSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Drops the slabs so that the direct memory gets released once the buffers are
+     * garbage collected. Payloads cannot be opened afterwards and streams still open
+     * fail on the next read
+     */
+    synchronized void close() {
+        closed = true;
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = null;
+        }
+        freeCount = 0;
+        nextChunk = 0;
+    }
+
+    /**
+     * Data stored off heap. The chunks are reference counted so that a payload
+     * being streamed while it gets released is only freed once the stream is closed
+     */
+    class Payload {
+        private final int[] chunks;
+        private final int length;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Payload(int[] chunks, int length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        int length() {
+            return length;
+        }
+
+        /**
+         * Returns the off heap memory used by this payload
+         */
+        long capacity() {
+            return (long) chunks.length * chunkSize;
+        }
+
+        /**
+         * Approximate heap used by this object and the chunk index array
+         */
+        long getRetainedSize() {
+            return 32 + Util.align(16 + 4L * chunks.length);
+        }
+
+        /**
+         * Opens a stream over the data. Returns null if the payload was already freed
+         * or the allocator is closed. The stream must be closed to release the chunks
+         */
+        @Nullable
+        InputStream openStream() {
+            if (isClosed() || !retain()) {
+                return null;
+            }
+            return new PayloadInputStream();
+        }
+
+        boolean isReleased() {
+            return released.get();
+        }
+
+        /**
+         * Releases the payload. The chunks are freed immediately unless a stream
+         * is open over them in which case they are freed once it gets closed.
+         * Returns false if the payload was already released
+         */
+        boolean release() {
+            if (released.compareAndSet(false, true)) {
+                unref();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean retain() {
+            int count;
+            do {
+                count = refCount.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!refCount.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        private void unref() {
+            if (refCount.decrementAndGet() == 0) {
+                free(chunks);
+            }
+        }
+
+        private class PayloadInputStream extends InputStream {
+            private int index = -1;
+            private ByteBuffer current;
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                if (!ensureAvailable()) {
+                    return -1;
+                }
+                return current.get() & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!ensureAvailable()) {
+                    return -1;
+                }
+                int n = Math.min(len, current.remaining());
+                current.get(b, off, n);
+                return n;
+            }
+
+            private boolean ensureAvailable() throws IOException {
+                if (closed) {
+                    return false;
+                }
+                while (current == null || !current.hasRemaining()) {
+                    if (index + 1 >= chunks.length) {
+                        return false;
+                    }
+                    index++;
+                    current = chunk(chunks[index]);
+                    if (current == null) {
+                        throw new IOException("Off heap payload is no longer available as the allocator got closed");
+                    }
+                    current.limit(Math.min(chunkSize, length - index * chunkSize));
+                }
+                return true;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    unref();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of strings shared across recordings. Same query, plan and caller strings
+ * are seen in most of the recordings and with this pool all of them refer to a
+ * single instance.
+ *
+ * Entries are weakly referenced and hence get dropped once no recording refers to
+ * them anymore. The pool is bounded and once full the strings are returned as is.
+ * The pool is split in segments to reduce lock contention.
+ */
+class StringInterner {
+    static final StringInterner INSTANCE = new StringInterner(32, 10000);
+
+    /**
+     * Strings larger than this are not interned as they are unlikely to be repeated
+     */
+    static final int MAX_LENGTH = 8 * 1024;
+
+    private final Segment[] segments;
+    private final int maxSizePerSegment;
+
+    StringInterner(int segmentCount, int maxSize) {
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+        this.maxSizePerSegment = Math.max(1, maxSize / segmentCount);
+    }
+
+    String intern(String s) {
+        if (s == null || s.length() > MAX_LENGTH) {
+            return s;
+        }
+        int h = s.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length].intern(s, maxSizePerSegment);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    private static class Segment {
+        private final Map<String, WeakReference<String>> pool = new WeakHashMap<>();
+
+        synchronized String intern(String s, int maxSize) {
+            WeakReference<String> ref = pool.get(s);
+            String existing = ref != null ? ref.get() : null;
+            if (existing != null) {
+                return existing;
+            }
+            if (pool.size() < maxSize) {
+                pool.put(s, new WeakReference<>(s));
+            }
+            return s;
+        }
+
+        synchronized int size() {
+            return pool.size();
+        }
+    }
+}
@@ -28,18 +28,50 @@ interface TraceLogRecorder {
             return Recording.NOOP;
         }
 
+        @Override
+        public Recording startSampledRecording(HttpServletRequest request, HttpServletResponse response) {
+            return Recording.NOOP;
+        }
+
+        @Override
+        public Recording startAutoTracedRecording(HttpServletRequest request, HttpServletResponse response) {
+            return Recording.NOOP;
+        }
+
         @Override
         public Recording getRecordingForRequest(HttpServletRequest request) {
             return Recording.NOOP;
         }
 
         @Override
-        public void endRecording(HttpServletRequest httpRequest, Recording recording) {}
+        public void endRecording(HttpServletRequest httpRequest, Recording recording, boolean failed) {}
     };
 
     Recording startRecording(HttpServletRequest request, HttpServletResponse response);
 
+    /**
+     * Starts a recording for a request selected by sampling i.e. irrespective of
+     * the client asking for it
+     */
+    Recording startSampledRecording(HttpServletRequest request, HttpServletResponse response);
+
+    /**
+     * Starts a recording for a request on a path whose latency regressed. Unlike sampled
+     * recordings these are always kept as capturing such requests is the whole point
+     */
+    Recording startAutoTracedRecording(HttpServletRequest request, HttpServletResponse response);
+
     Recording getRecordingForRequest(HttpServletRequest request);
 
-    void endRecording(HttpServletRequest httpRequest, Recording recording);
+    default void endRecording(HttpServletRequest httpRequest, Recording recording) {
+        endRecording(httpRequest, recording, false);
+    }
+
+    /**
+     * Ends the recording of a request
+     *
+     * @param failed true if processing of the request failed with an exception, in
+     *               which case the response status might not reflect the failure yet
+     */
+    void endRecording(HttpServletRequest httpRequest, Recording recording, boolean failed);
 }
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Limits the rate at which new requests get traced and the number of requests
+ * traced at a time. The rate is enforced with a token bucket holding up to one
+ * second worth of tokens. Instead of a token count the bucket keeps the time up to
+ * which the accrued tokens have been taken, so that taking a token is a single CAS
+ */
+class TracerAdmission {
+    enum Rejection {
+        RATE,
+        CONCURRENCY
+    }
+
+    /**
+     * Admits every request
+     */
+    static final TracerAdmission UNLIMITED = new TracerAdmission(0, 0);
+
+    private final long intervalNanos;
+
+    private final long capacityNanos;
+
+    private final int maxConcurrent;
+
+    private final AtomicLong takenUntil = new AtomicLong(Long.MIN_VALUE);
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * @param ratePerSecond number of requests admitted per second. 0 or less to not
+     *                      limit the rate
+     * @param maxConcurrent number of requests traced at a time. 0 or less to not
+     *                      limit the concurrency
+     */
+    TracerAdmission(int ratePerSecond, int maxConcurrent) {
+        this.intervalNanos = ratePerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerSecond : 0;
+        this.capacityNanos = TimeUnit.SECONDS.toNanos(1);
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Admits a request to be traced. Returns the reason if it is rejected. An admitted
+     * request must be {@linkplain #release() released} once done
+     */
+    @Nullable
+    Rejection tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    @Nullable
+    Rejection tryAcquire(long now) {
+        if (maxConcurrent > 0 && active.incrementAndGet() > maxConcurrent) {
+            active.decrementAndGet();
+            return Rejection.CONCURRENCY;
+        }
+        if (intervalNanos > 0 && !takeToken(now)) {
+            if (maxConcurrent > 0) {
+                active.decrementAndGet();
+            }
+            return Rejection.RATE;
+        }
+        return null;
+    }
+
+    void release() {
+        if (maxConcurrent > 0) {
+            active.decrementAndGet();
+        }
+    }
+
+    int getActiveCount() {
+        return active.get();
+    }
+
+    private boolean takeToken(long now) {
+        while (true) {
+            long current = takenUntil.get();
+            // Tokens do not accrue beyond the capacity of the bucket
+            long next = Math.max(current, now - capacityNanos) + intervalNanos;
+            if (next > now) {
+                return false;
+            }
+            if (takenUntil.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
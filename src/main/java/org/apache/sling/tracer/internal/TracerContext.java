@@ -105,6 +105,10 @@ class TracerContext {
         recording.recordCategory(loggerName);
     }
 
+    public void recordLevel(Level level) {
+        recording.recordLevel(level);
+    }
+
     public void done() {
         if (queryCount > 0) {
             progressTracker.log("JCR Query Count {0}", queryCount);
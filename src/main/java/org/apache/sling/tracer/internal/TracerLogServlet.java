@@ -22,31 +22,114 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.ProxyOutputStream;
 import org.apache.felix.utils.json.JSONWriter;
 import org.apache.felix.webconsole.SimpleWebConsolePlugin;
+import org.jetbrains.annotations.Nullable;
 import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorder {
+    private static final Logger log = LoggerFactory.getLogger(TracerLogServlet.class);
+
     static final String ATTR_RECORDING = TracerLogServlet.class.getName();
 
     public static final String CLEAR = "clear";
 
     private static final String LABEL = "tracer";
 
+    static final String QUERY_STATS = "queryStats";
+
+    static final String PARAM_WINDOW = "window";
+
+    static final String PARAM_LIMIT = "limit";
+
+    /**
+     * Name of the endpoint streaming recordings as newline delimited JSON
+     */
+    static final String EXPORT = "export";
+
+    /**
+     * Name of the endpoint listing cached recordings page wise
+     */
+    static final String LIST = "list";
+
+    /**
+     * Name of the endpoint searching cached recordings by the terms they are indexed with
+     */
+    static final String SEARCH = "search";
+
+    static final String PARAM_QUERY = "q";
+
+    /**
+     * Name of the endpoint streaming events of in flight recordings as Server-Sent Events
+     */
+    static final String LIVE = "live";
+
+    static final String PARAM_REQUEST_ID = "requestId";
+
+    static final String PARAM_URI = "uri";
+
+    static final String PARAM_TIMEOUT = "timeout";
+
+    private static final long DEFAULT_LIVE_TIMEOUT_SECS = TimeUnit.MINUTES.toSeconds(5);
+
+    private static final long MAX_LIVE_TIMEOUT_SECS = TimeUnit.HOURS.toSeconds(1);
+
+    private static final long LIVE_KEEP_ALIVE_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    private static final long LIVE_POLL_MILLIS = 500;
+
+    static final String PARAM_SORT = "sort";
+
+    static final String PARAM_ORDER = "order";
+
+    static final String PARAM_OFFSET = "offset";
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * Done recordings never change. Kept private as recordings may hold sensitive data
+     */
+    static final String CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+    private static final int DEFAULT_QUERY_STATS_LIMIT = 100;
+
+    /**
+     * Max age of stored recordings is configured in hours hence a coarse interval suffices
+     */
+    private static final long STORE_CLEANUP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     public static final String HEADER_TRACER_RECORDING = "Sling-Tracer-Record";
 
     public static final String HEADER_TRACER_REQUEST_ID = "Sling-Tracer-Request-Id";
@@ -55,6 +138,21 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
 
     public static final int TRACER_PROTOCOL_VERSION = 1;
 
+    /**
+     * Protocol version in which a summary of the recording is sent inline with the
+     * traced response. Clients opt in by sending this version in the
+     * {@link #HEADER_TRACER_PROTOCOL_VERSION} request header
+     */
+    public static final int TRACER_PROTOCOL_VERSION_INLINE = 2;
+
+    /**
+     * Header, or trailer if the response was already committed, holding the
+     * recording summary as compact JSON
+     */
+    public static final String HEADER_TRACER_SUMMARY = "Sling-Tracer-Summary";
+
+    private static final String ATTR_RESPONSE = ATTR_RECORDING + ".response";
+
     private final BoundedCache cache;
 
     private final boolean compressRecording;
@@ -65,21 +163,93 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
 
     private final boolean gzipResponse;
 
-    public TracerLogServlet(
-            BundleContext context,
-            int cacheSizeInMB,
-            long cacheDurationInSecs,
-            boolean compressionEnabled,
-            boolean gzipResponse) {
+    private final int queryHotspotThreshold;
+
+    private final EvictionPolicy evictionPolicy;
+
+    @Nullable
+    private final QueryStatsAggregator queryStats;
+
+    private final long queryStatsWindowInSecs;
+
+    @Nullable
+    private final MemoryPressureMonitor memoryMonitor;
+
+    @Nullable
+    private final RecordingStore store;
+
+    private final long recompressAfterSecs;
+
+    private final int searchMaxTerms;
+
+    private final long tailLatencyThresholdMillis;
+
+    private final int tailMaxLogEntries;
+
+    @Nullable
+    private final LiveEventHub liveEvents;
+
+    private final TracerMetrics metrics;
+
+    public TracerLogServlet(BundleContext context, Configuration config) {
+        this(context, config, new TracerMetrics());
+    }
+
+    public TracerLogServlet(BundleContext context, Configuration config, TracerMetrics metrics) {
         super(LABEL, "Sling Tracer", "Sling", null);
-        this.compressRecording = compressionEnabled;
-        this.cacheDurationInSecs = cacheDurationInSecs;
-        this.cacheSizeInMB = cacheSizeInMB;
-        this.gzipResponse = compressionEnabled && gzipResponse;
-        this.cache = new BoundedCache(cacheSizeInMB, cacheDurationInSecs);
+        this.metrics = metrics;
+        this.compressRecording = config.recordingCompressionEnabled();
+        this.cacheDurationInSecs = config.recordingCacheDurationInSecs();
+        this.cacheSizeInMB = config.recordingCacheSizeInMB();
+        this.gzipResponse = compressRecording && config.gzipResponse();
+        this.queryHotspotThreshold = config.queryHotspotThreshold();
+        this.queryStatsWindowInSecs = config.queryStatsWindowInSecs();
+        this.queryStats = queryStatsWindowInSecs > 0
+                ? new QueryStatsAggregator(queryStatsWindowInSecs, config.queryStatsMaxShapes())
+                : null;
+        this.evictionPolicy = EvictionPolicy.create(config.recordingEvictionPolicy(), config.recordingRetainedCount());
+        this.recompressAfterSecs = compressRecording ? config.recordingRecompressAfterSecs() : 0;
+        this.searchMaxTerms = Math.max(0, config.recordingSearchMaxTerms());
+        this.tailLatencyThresholdMillis = config.tailLatencyThresholdMillis();
+        this.tailMaxLogEntries = config.tailMaxLogEntries();
+        this.liveEvents = config.liveMaxSubscribers() > 0
+                ? new LiveEventHub(config.liveMaxSubscribers(), LiveEventHub.DEFAULT_BUFFER_SIZE)
+                : null;
+        this.cache = new BoundedCache(
+                cacheSizeInMB,
+                cacheDurationInSecs,
+                evictionPolicy,
+                config.recordingOffHeapEnabled(),
+                recompressAfterSecs,
+                metrics);
+        this.memoryMonitor = MemoryPressureMonitor.create(
+                config.memoryHighWatermarkPercent(), config.memoryLowWatermarkPercent(), this::releaseMemory);
+        this.store = config.recordingStoreEnabled() ? createStore(context, config) : null;
+        if (store != null) {
+            cache.scheduleMaintenance(store::cleanup, STORE_CLEANUP_INTERVAL_MILLIS);
+        }
         register(context);
     }
 
+    @Nullable
+    private static RecordingStore createStore(BundleContext context, Configuration config) {
+        File dir = context.getDataFile("recordings");
+        if (dir == null) {
+            log.warn("Bundle data area not available. Recordings would not be stored on disk");
+            return null;
+        }
+        try {
+            return new RecordingStore(
+                    dir,
+                    config.recordingStoreSizeInMB() * FileUtils.ONE_MB,
+                    config.recordingStoreSegmentSizeInMB() * FileUtils.ONE_MB,
+                    TimeUnit.HOURS.toMillis(config.recordingStoreMaxAgeInHours()));
+        } catch (IOException e) {
+            log.warn("Error occurred while opening the recording store at {}", dir, e);
+            return null;
+        }
+    }
+
     boolean isCompressRecording() {
         return compressRecording;
     }
@@ -96,97 +266,578 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
         return cacheDurationInSecs;
     }
 
+    EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    TracerMetrics getMetrics() {
+        return metrics;
+    }
+
+    BoundedCache getCache() {
+        return cache;
+    }
+
+    @Nullable
+    LiveEventHub getLiveEvents() {
+        return liveEvents;
+    }
+
+    @Nullable
+    RecordingStore getStore() {
+        return store;
+    }
+
+    @Nullable
+    MemoryPressureMonitor getMemoryMonitor() {
+        return memoryMonitor;
+    }
+
+    boolean isUnderMemoryPressure() {
+        return memoryMonitor != null && memoryMonitor.isUnderPressure();
+    }
+
+    /**
+     * Invoked on memory pressure. Halves the memory used by the cache, each further
+     * notification on subsequent collections releasing more
+     */
+    void releaseMemory() {
+        long before = cache.memorySize();
+        cache.shrink(before / 2);
+        log.info(
+                "Released {} of cached recordings due to memory pressure",
+                humanReadableByteCount(before - cache.memorySize()));
+    }
+
+    /**
+     * Unregisters the plugin and releases all the resources held
+     */
+    void close() {
+        unregister();
+        if (liveEvents != null) {
+            liveEvents.close();
+        }
+        if (store != null) {
+            store.close();
+        }
+        if (memoryMonitor != null) {
+            memoryMonitor.close();
+        }
+        cache.close();
+    }
+
+    /**
+     * Cache of the recordings bounded by size and time since last access. The
+     * recordings are held in a concurrent map and the access order is maintained
+     * per segment so that access updates are O(1) and only contend on the segment
+     * lock. Eviction picks the least recently accessed entry among the eldest of
+     * each segment, skipping the entries retained by the {@link EvictionPolicy}.
+     *
+     * Expired entries are removed by a background task which runs periodically and
+     * only needs to inspect the eldest entry of each segment. So accesses do not pay
+     * for expiry and idle caches still release the memory on time
+     */
     public static class BoundedCache {
+        private static final int SEGMENT_COUNT = 16;
 
-        public static class Entry implements Comparable<Entry> {
-            long lastAccessed;
-            JSONRecording recording;
+        private static final long MIN_EXPIRY_INTERVAL_MILLIS = 100;
 
-            @Override
-            public int compareTo(Entry o) {
-                return Long.compare(this.lastAccessed, o.lastAccessed);
+        private static final long MAX_EXPIRY_INTERVAL_MILLIS = 1000;
+
+        private static final long MAX_RECOMPRESS_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+        /**
+         * Time a single recompression run may take so that expiry is not held up
+         */
+        private static final long MAX_RECOMPRESS_RUN_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+        /**
+         * System load average per processor below which the system is considered idle
+         */
+        private static final double IDLE_LOAD = 0.5;
+
+        /**
+         * Approximate heap used per cached recording by the cache itself i.e. the
+         * entry, the map nodes in the concurrent map and the segment LinkedHashMap
+         * and the table slots referring to them
+         */
+        static final int ENTRY_OVERHEAD = 128;
+
+        static class Entry {
+            final String requestId;
+            final JSONRecording recording;
+            /**
+             * Memory accounted for the entry. Guarded by the segment lock
+             */
+            long size;
+
+            /**
+             * Key of the entry in the secondary indexes. Guarded by the segment lock
+             */
+            RecordingIndex.Key indexKey;
+
+            /**
+             * Terms the entry is indexed with in the search index
+             */
+            final String[] terms;
+
+            final Segment segment;
+            volatile long lastAccessed;
+            volatile boolean fetched;
+            /**
+             * Sequence number of last access used to order entries across segments
+             * as multiple accesses can happen within same millisecond
+             */
+            volatile long accessSeq;
+
+            Entry(String requestId, JSONRecording recording, Segment segment) {
+                this.requestId = requestId;
+                this.recording = recording;
+                String[] terms = recording.getSearchTerms();
+                this.terms = terms != null ? terms : new String[0];
+                this.size = sizeOf(recording, this.terms);
+                this.indexKey = new RecordingIndex.Key(requestId, recording);
+                this.segment = segment;
+            }
+        }
+
+        private static long sizeOf(JSONRecording recording, String[] terms) {
+            long size = recording.getRetainedSize() + recording.getOffHeapSize() + ENTRY_OVERHEAD;
+            if (terms.length > 0) {
+                size += RecordingSearchIndex.estimateSize(terms);
             }
+            return size;
         }
 
-        private final Map<String, Entry> cache = new HashMap<>();
+        private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+
+        private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+        private final RecordingIndex index = new RecordingIndex();
+
+        private final RecordingSearchIndex searchIndex = new RecordingSearchIndex();
 
         private final long maxSize;
 
-        private volatile long currentSize;
+        private final AtomicLong currentSize = new AtomicLong();
+
+        private final AtomicLong accessCounter = new AtomicLong();
 
         private final long cacheDurationInMillis;
 
+        private final ScheduledExecutorService expiryExecutor;
+
+        private final EvictionPolicy evictionPolicy;
+
+        @Nullable
+        private final SlabAllocator allocator;
+
+        private final long recompressAfterMillis;
+
+        private final TracerMetrics metrics;
+
         public BoundedCache(final long maxSizeInMB, final long cacheDurationInSecs) {
+            this(maxSizeInMB, cacheDurationInSecs, EvictionPolicy.LRU);
+        }
+
+        public BoundedCache(
+                final long maxSizeInMB, final long cacheDurationInSecs, final EvictionPolicy evictionPolicy) {
+            this(maxSizeInMB, cacheDurationInSecs, evictionPolicy, false);
+        }
+
+        public BoundedCache(
+                final long maxSizeInMB,
+                final long cacheDurationInSecs,
+                final EvictionPolicy evictionPolicy,
+                final boolean offHeap) {
+            this(maxSizeInMB, cacheDurationInSecs, evictionPolicy, offHeap, 0);
+        }
+
+        public BoundedCache(
+                final long maxSizeInMB,
+                final long cacheDurationInSecs,
+                final EvictionPolicy evictionPolicy,
+                final boolean offHeap,
+                final long recompressAfterSecs) {
+            this(maxSizeInMB, cacheDurationInSecs, evictionPolicy, offHeap, recompressAfterSecs, new TracerMetrics());
+        }
+
+        /**
+         * @param offHeap if true the payload of cached recordings is moved to direct
+         *                memory slabs bounded by the cache size
+         * @param recompressAfterSecs age after which compressed recordings are
+         *                            recompressed at the best level when the system
+         *                            is idle. Zero disables recompression
+         * @param metrics counters updated on cache operations
+         */
+        public BoundedCache(
+                final long maxSizeInMB,
+                final long cacheDurationInSecs,
+                final EvictionPolicy evictionPolicy,
+                final boolean offHeap,
+                final long recompressAfterSecs,
+                final TracerMetrics metrics) {
             this.maxSize = maxSizeInMB * 1024 * 1024;
+            this.metrics = metrics;
+            this.evictionPolicy = evictionPolicy;
+            this.allocator = offHeap ? new SlabAllocator(maxSize) : null;
             this.cacheDurationInMillis = TimeUnit.SECONDS.toMillis(cacheDurationInSecs);
+            for (int i = 0; i < SEGMENT_COUNT; i++) {
+                segments[i] = new Segment();
+            }
+
+            long interval = Math.max(
+                    MIN_EXPIRY_INTERVAL_MILLIS, Math.min(MAX_EXPIRY_INTERVAL_MILLIS, cacheDurationInMillis / 10));
+            this.expiryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sling-tracer-cache-expiry");
+                t.setDaemon(true);
+                return t;
+            });
+            this.expiryExecutor.scheduleWithFixedDelay(this::runExpiry, interval, interval, TimeUnit.MILLISECONDS);
+
+            this.recompressAfterMillis = TimeUnit.SECONDS.toMillis(recompressAfterSecs);
+            if (recompressAfterMillis > 0) {
+                long recompressInterval = Math.max(
+                        MIN_EXPIRY_INTERVAL_MILLIS,
+                        Math.min(MAX_RECOMPRESS_INTERVAL_MILLIS, recompressAfterMillis / 4));
+                this.expiryExecutor.scheduleWithFixedDelay(
+                        this::runRecompression, recompressInterval, recompressInterval, TimeUnit.MILLISECONDS);
+            }
         }
 
-        public synchronized JSONRecording get(final String requestId) {
-            checkCache();
+        public JSONRecording get(final String requestId) {
+            final long now = System.currentTimeMillis();
             final Entry entry = this.cache.get(requestId);
             if (entry != null) {
-                entry.lastAccessed = System.currentTimeMillis();
-                cache.put(requestId, entry);
+                if (isExpired(entry, now)) {
+                    remove(entry, true);
+                    return null;
+                }
+                entry.fetched = true;
+                entry.segment.touch(entry, now);
                 return entry.recording;
             }
             return null;
         }
 
-        public synchronized void put(final String requestId, final JSONRecording recording) {
-            final Entry entry = new Entry();
-            entry.lastAccessed = System.currentTimeMillis();
-            entry.recording = recording;
-            cache.put(requestId, entry);
-            this.currentSize += recording.size();
+        public void put(final String requestId, final JSONRecording recording) {
+            final long now = System.currentTimeMillis();
+            final Segment segment = segmentFor(requestId);
+            final long startNanos = System.nanoTime();
+            if (allocator != null) {
+                // Make room first so that the payload fits off heap
+                shrink(maxSize - recording.size());
+                recording.moveOffHeap(allocator);
+            }
+            final Entry entry = new Entry(requestId, recording, segment);
+            segment.put(entry, now);
             checkCache();
+            metrics.evictionTimeNanos.add(System.nanoTime() - startNanos);
+            metrics.bytesIn.add(recording.size());
         }
 
         private void checkCache() {
-            final Set<String> toRemove = new HashSet<>();
-            final ArrayList<Entry> list = new ArrayList<>(this.cache.values());
-            Collections.sort(list);
-            if (this.currentSize > this.maxSize) {
-                while (this.currentSize > this.maxSize && !list.isEmpty()) {
-                    final Entry entry = list.remove(0);
-                    toRemove.add(entry.recording.getRequestId());
-                    currentSize -= entry.recording.size();
+            shrink(maxSize);
+        }
+
+        /**
+         * Evicts recordings till the memory used is at most the given size. Recordings
+         * not retained by the eviction policy go first in least recently accessed order
+         */
+        void shrink(long targetSize) {
+            while (currentSize.get() > targetSize) {
+                Entry eldest = null;
+                for (Segment s : segments) {
+                    Entry e = s.eldestEvictable();
+                    if (e != null && (eldest == null || e.accessSeq < eldest.accessSeq)) {
+                        eldest = e;
+                    }
+                }
+                if (eldest == null) {
+                    eldest = leastValuable();
+                }
+                if (eldest == null) {
+                    break;
+                }
+                remove(eldest, false);
+            }
+        }
+
+        private Entry leastValuable() {
+            JSONRecording recording = evictionPolicy.leastValuable();
+            if (recording == null) {
+                return null;
+            }
+            Entry entry = cache.get(recording.getRequestId());
+            if (entry == null || entry.recording != recording) {
+                // Recording already removed from cache
+                evictionPolicy.removed(recording);
+                return leastValuable();
+            }
+            return entry;
+        }
+
+        private void runExpiry() {
+            try {
+                expire(System.currentTimeMillis());
+            } catch (Throwable t) {
+                log.warn("Error occurred while removing expired recordings", t);
+            }
+        }
+
+        private void runRecompression() {
+            try {
+                if (isIdle()) {
+                    recompress(System.currentTimeMillis());
+                }
+            } catch (Throwable t) {
+                log.warn("Error occurred while recompressing recordings", t);
+            }
+        }
+
+        private static boolean isIdle() {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            double load = os.getSystemLoadAverage();
+            // Load average is not available on all platforms
+            return load < 0 || load / os.getAvailableProcessors() < IDLE_LOAD;
+        }
+
+        /**
+         * Recompresses recordings older than the configured age at the best level.
+         * Recent recordings stay at the fast level they were compressed with at
+         * done. A single run is bounded in time and picks up where the previous one
+         * left off as recompressed recordings are skipped
+         */
+        void recompress(long now) {
+            final long deadline = System.nanoTime() + MAX_RECOMPRESS_RUN_NANOS;
+            for (Entry e : cache.values()) {
+                if (System.nanoTime() > deadline) {
+                    break;
+                }
+                JSONRecording r = e.recording;
+                if (!r.isCompressed()
+                        || r.getCompressionLevel() >= Deflater.BEST_COMPRESSION
+                        || r.getStart() > now - recompressAfterMillis) {
+                    continue;
+                }
+                try {
+                    if (r.recompress(Deflater.BEST_COMPRESSION, allocator)) {
+                        e.segment.resize(e);
+                    }
+                } catch (IOException ex) {
+                    log.debug("Error occurred while recompressing recording {}", e.requestId, ex);
                 }
             }
-            final long time = System.currentTimeMillis() - this.cacheDurationInMillis;
-            for (final Entry entry : list) {
-                if (entry.lastAccessed < time) {
-                    toRemove.add(entry.recording.getRequestId());
-                    currentSize -= entry.recording.size();
+        }
+
+        /**
+         * Removes the expired entries. As each segment is ordered by access time only
+         * the entries at the head of the segments need to be checked
+         */
+        void expire(long now) {
+            for (Segment s : segments) {
+                Entry e;
+                while ((e = s.eldest()) != null && isExpired(e, now)) {
+                    remove(e, true);
                 }
             }
-            for (final String key : toRemove) {
-                this.cache.remove(key);
+        }
+
+        private boolean isExpired(Entry entry, long now) {
+            return entry.lastAccessed < now - cacheDurationInMillis;
+        }
+
+        private void remove(Entry entry, boolean expired) {
+            if (entry.segment.remove(entry)) {
+                metrics.evicted(expired, entry.fetched);
             }
         }
 
-        public synchronized int size() {
-            checkCache();
+        private Segment segmentFor(String requestId) {
+            int h = requestId.hashCode();
+            h ^= (h >>> 16);
+            return segments[(h & 0x7fffffff) % SEGMENT_COUNT];
+        }
+
+        public int size() {
             return this.cache.size();
         }
 
-        public synchronized long memorySize() {
-            checkCache();
-            return this.currentSize;
+        public long memorySize() {
+            return this.currentSize.get();
         }
 
-        public synchronized void clear() {
-            this.cache.clear();
-            this.currentSize = 0;
+        public void clear() {
+            for (Segment s : segments) {
+                s.clear();
+            }
         }
 
-        public synchronized List<JSONRecording> asList() {
-            checkCache();
-            final List<JSONRecording> result = new ArrayList<>();
+        public void close() {
+            expiryExecutor.shutdownNow();
+            clear();
+            if (allocator != null) {
+                allocator.close();
+            }
+        }
+
+        /**
+         * Runs the task periodically on the background thread of the cache
+         */
+        void scheduleMaintenance(Runnable task, long intervalMillis) {
+            expiryExecutor.scheduleWithFixedDelay(
+                    () -> {
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            log.warn("Error occurred while running maintenance task", t);
+                        }
+                    },
+                    intervalMillis,
+                    intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Nullable
+        SlabAllocator getAllocator() {
+            return allocator;
+        }
+
+        /**
+         * Returns a page of the cached recordings in the given order. Only the
+         * recordings on the page and the ones before it are visited
+         */
+        public List<JSONRecording> page(RecordingIndex.Sort sort, boolean descending, int offset, int limit) {
+            return index.page(sort, descending, offset, limit);
+        }
+
+        /**
+         * Returns a page of the recordings started within the given time range, both
+         * inclusive, in start order
+         */
+        public List<JSONRecording> range(long from, long to, boolean descending, int offset, int limit) {
+            return index.range(from, to, descending, offset, limit);
+        }
+
+        /**
+         * Returns the cached recordings matching all the given search queries, most
+         * recent first. See {@link RecordingSearchIndex#search(Collection)} for the
+         * query syntax
+         */
+        public List<JSONRecording> search(Collection<String> queries, int limit) {
+            List<JSONRecording> result = new ArrayList<>();
+            for (String requestId : searchIndex.search(queries)) {
+                Entry entry = cache.get(requestId);
+                if (entry != null) {
+                    result.add(entry.recording);
+                }
+            }
+            result.sort(Collections.reverseOrder());
+            return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+        }
+
+        int searchTermCount() {
+            return searchIndex.termCount();
+        }
+
+        public List<JSONRecording> asList() {
+            final List<JSONRecording> result = new ArrayList<>(cache.size());
             for (final Entry entry : this.cache.values()) {
                 result.add(entry.recording);
             }
             return result;
         }
+
+        /**
+         * Segment maintains the access order of the entries whose request id maps to
+         * it. Any change to the cache map for such entries is done under the segment
+         * lock such that the map, the access order and the size remain consistent
+         */
+        private class Segment {
+            private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+            synchronized void put(Entry entry, long now) {
+                entry.lastAccessed = now;
+                entry.accessSeq = accessCounter.incrementAndGet();
+                Entry old = cache.put(entry.requestId, entry);
+                if (old != null) {
+                    currentSize.addAndGet(-old.size);
+                    index.remove(old.indexKey);
+                    searchIndex.remove(old.requestId, old.terms);
+                    evictionPolicy.removed(old.recording);
+                    if (old.recording != entry.recording) {
+                        old.recording.releasePayload();
+                    }
+                }
+                entries.put(entry.requestId, entry);
+                currentSize.addAndGet(entry.size);
+                index.add(entry.indexKey);
+                searchIndex.add(entry.requestId, entry.terms);
+                evictionPolicy.added(entry.recording);
+            }
+
+            synchronized void resize(Entry entry) {
+                if (entries.get(entry.requestId) == entry) {
+                    long size = sizeOf(entry.recording, entry.terms);
+                    currentSize.addAndGet(size - entry.size);
+                    entry.size = size;
+                    index.remove(entry.indexKey);
+                    entry.indexKey = new RecordingIndex.Key(entry.requestId, entry.recording);
+                    index.add(entry.indexKey);
+                }
+            }
+
+            synchronized void touch(Entry entry, long now) {
+                // Lookup moves the entry to the tail in access order
+                if (entries.get(entry.requestId) == entry) {
+                    entry.lastAccessed = now;
+                    entry.accessSeq = accessCounter.incrementAndGet();
+                }
+            }
+
+            synchronized boolean remove(Entry entry) {
+                if (entries.remove(entry.requestId, entry)) {
+                    cache.remove(entry.requestId, entry);
+                    currentSize.addAndGet(-entry.size);
+                    index.remove(entry.indexKey);
+                    searchIndex.remove(entry.requestId, entry.terms);
+                    evictionPolicy.removed(entry.recording);
+                    entry.recording.releasePayload();
+                    return true;
+                }
+                return false;
+            }
+
+            synchronized Entry eldest() {
+                Iterator<Entry> itr = entries.values().iterator();
+                return itr.hasNext() ? itr.next() : null;
+            }
+
+            /**
+             * Returns the least recently accessed entry which is not retained by the
+             * eviction policy
+             */
+            synchronized Entry eldestEvictable() {
+                for (Entry e : entries.values()) {
+                    if (!evictionPolicy.isRetained(e.recording)) {
+                        return e;
+                    }
+                }
+                return null;
+            }
+
+            synchronized void clear() {
+                for (Entry e : entries.values()) {
+                    cache.remove(e.requestId, e);
+                    currentSize.addAndGet(-e.size);
+                    index.remove(e.indexKey);
+                    searchIndex.remove(e.requestId, e.terms);
+                    evictionPolicy.removed(e.recording);
+                    e.recording.releasePayload();
+                }
+                entries.clear();
+            }
+        }
     }
 
     // ~-----------------------------------------------< WebConsole Plugin >
@@ -197,21 +848,58 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
         if (isHtmlRequest(request)) {
             PrintWriter pw = response.getWriter();
             renderStatus(pw);
-            renderRequests(pw);
+            renderRequests(request, pw);
         } else {
             String requestId = getRequestId(request);
+            if (LIVE.equals(requestId)) {
+                renderLive(request, response);
+                return;
+            }
             prepareJSONResponse(response);
+            if (QUERY_STATS.equals(requestId)) {
+                renderQueryStats(request, response);
+                return;
+            }
+            if (EXPORT.equals(requestId)) {
+                renderExport(request, response);
+                return;
+            }
+            if (LIST.equals(requestId)) {
+                renderList(request, response);
+                return;
+            }
+            if (SEARCH.equals(requestId)) {
+                renderSearch(request, response);
+                return;
+            }
             try {
                 boolean responseDone = false;
                 if (requestId != null) {
                     JSONRecording recording = cache.get(requestId);
                     if (recording != null) {
-                        boolean shouldGZip = prepareForGZipResponse(request, response);
-                        responseDone = recording.render(response.getOutputStream(), shouldGZip);
+                        // Level, size and content are taken from the same payload as a
+                        // concurrent recompression replaces it
+                        try (JSONRecording.OpenPayload payload = recording.openPayload()) {
+                            if (payload != null) {
+                                responseDone = renderPayload(
+                                        request,
+                                        response,
+                                        String.valueOf(payload.getCompressionLevel()),
+                                        requestId,
+                                        recording.isCompressed(),
+                                        payload.length(),
+                                        payload::write);
+                            }
+                        }
+                    } else if (store != null) {
+                        responseDone = renderStored(requestId, request, response);
                     }
                 }
 
-                if (!responseDone) {
+                if (responseDone) {
+                    metrics.fetched.increment();
+                } else {
+                    metrics.missed.increment();
                     PrintWriter pw = response.getWriter();
                     JSONWriter jw = new JSONWriter(pw);
                     jw.object();
@@ -224,6 +912,308 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
         }
     }
 
+    private boolean renderStored(String requestId, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        RecordingStore.StoredRecording stored = store.get(requestId);
+        if (stored == null) {
+            return false;
+        }
+        return renderPayload(
+                request,
+                response,
+                "s",
+                requestId,
+                stored.compressed,
+                stored.size(),
+                (os, compressed, offset, length) -> store.render(stored, os, compressed, offset, length));
+    }
+
+    private interface PayloadWriter {
+        boolean write(OutputStream os, boolean compressed, long offset, long length) throws IOException;
+    }
+
+    /**
+     * Writes a recording payload with support for conditional requests. Recordings
+     * never change once done, so a strong ETag per representation allows clients to
+     * revalidate with If-None-Match. The gzip form is served as stored and hence
+     * also supports byte ranges. The ETag of the gzip form includes the compression
+     * level as recompression changes the bytes
+     *
+     * @param gzipVariant distinguishes the gzip form of different sources of the
+     *                    same recording i.e. cache at a given level and store
+     * @param compressedSize size of the gzip form
+     */
+    private boolean renderPayload(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            String gzipVariant,
+            String requestId,
+            boolean compressed,
+            long compressedSize,
+            PayloadWriter writer)
+            throws IOException {
+        boolean gzip = compressed && acceptsGZip(request);
+        String etag = '"' + requestId + (gzip ? "-gz" + gzipVariant : "-json") + '"';
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", CACHE_CONTROL);
+        if (gzipResponse) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        if (!gzip) {
+            response.setHeader("Accept-Ranges", "none");
+            return writer.write(meteredStream(response), false, 0, -1);
+        }
+
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("Accept-Ranges", "bytes");
+        String ifRange = request.getHeader("If-Range");
+        long[] range = ifRange == null || ifRange.trim().equals(etag)
+                ? parseRange(request.getHeader("Range"), compressedSize)
+                : null;
+        if (range == null) {
+            response.setContentLengthLong(compressedSize);
+            return writer.write(meteredStream(response), true, 0, -1);
+        }
+        if (range.length == 0) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + compressedSize);
+            return true;
+        }
+        long length = range[1] - range[0] + 1;
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + compressedSize);
+        response.setContentLengthLong(length);
+        return writer.write(meteredStream(response), true, range[0], length);
+    }
+
+    static boolean matchesETag(@Nullable String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String t = tag.trim();
+            if (t.startsWith("W/")) {
+                // Weak comparison is used for If-None-Match
+                t = t.substring(2);
+            }
+            if (t.equals("*") || t.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a single byte range. Returns null if there is no range, it is invalid
+     * or asks for multiple ranges in which case the whole content is served. An
+     * empty array is returned if the range cannot be satisfied
+     */
+    @Nullable
+    static long[] parseRange(@Nullable String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // Suffix range i.e. last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (end < start) {
+                    return start >= size ? new long[0] : null;
+                }
+            }
+            if (start >= size) {
+                return new long[0];
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private OutputStream meteredStream(HttpServletResponse response) throws IOException {
+        return new ProxyOutputStream(response.getOutputStream()) {
+            @Override
+            protected void afterWrite(int n) {
+                metrics.bytesOut.add(n);
+            }
+        };
+    }
+
+    private void renderExport(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RecordingExporter exporter = RecordingExporter.fromRequest(request);
+        response.setContentType(RecordingExporter.CONTENT_TYPE);
+        boolean gzip = prepareForGZipResponse(request, response);
+        int count = exporter.export(cache, store, meteredStream(response), gzip);
+        metrics.fetched.add(count);
+    }
+
+    private void renderList(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Page page = Page.fromRequest(request);
+        JSONWriter jw = new JSONWriter(response.getWriter());
+        jw.object();
+        jw.key("total").value(cache.size());
+        jw.key(PARAM_OFFSET).value(page.offset);
+        jw.key(PARAM_LIMIT).value(page.limit);
+        jw.key(PARAM_SORT).value(page.sort.name().toLowerCase(Locale.ENGLISH));
+        jw.key(PARAM_ORDER).value(page.order());
+        jw.key("recordings");
+        jw.array();
+        for (JSONRecording r : page.fetch(cache)) {
+            writeSummary(jw, r);
+        }
+        jw.endArray();
+        jw.endObject();
+    }
+
+    private void renderSearch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String[] values = request.getParameterValues(PARAM_QUERY);
+        List<String> queries = new ArrayList<>();
+        if (values != null) {
+            for (String value : values) {
+                String query = Util.trimToNull(value);
+                if (query != null) {
+                    queries.add(query);
+                }
+            }
+        }
+        int limit =
+                (int) Math.max(1, Math.min(getLongParameter(request, PARAM_LIMIT, DEFAULT_PAGE_SIZE), MAX_PAGE_SIZE));
+        JSONWriter jw = new JSONWriter(response.getWriter());
+        jw.object();
+        if (queries.isEmpty()) {
+            jw.key("error").value("No search query specified via parameter '" + PARAM_QUERY + "'");
+        } else {
+            List<JSONRecording> recordings = cache.search(queries, limit);
+            jw.key("count").value(recordings.size());
+            jw.key("recordings");
+            jw.array();
+            for (JSONRecording r : recordings) {
+                writeSummary(jw, r);
+            }
+            jw.endArray();
+        }
+        jw.endObject();
+    }
+
+    /**
+     * Streams the events of in flight recordings till the client disconnects or
+     * the timeout is reached. The events are buffered per subscriber so a slow
+     * client only loses events and never holds up the traced requests
+     */
+    private void renderLive(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        LiveEventHub.Subscriber subscriber = liveEvents != null
+                ? liveEvents.subscribe(
+                        Util.trimToNull(request.getParameter(PARAM_REQUEST_ID)),
+                        Util.trimToNull(request.getParameter(PARAM_URI)))
+                : null;
+        if (subscriber == null) {
+            response.sendError(
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    liveEvents == null ? "Live streaming is disabled" : "Too many live subscribers");
+            return;
+        }
+        long timeoutSecs =
+                Math.min(getLongParameter(request, PARAM_TIMEOUT, DEFAULT_LIVE_TIMEOUT_SECS), MAX_LIVE_TIMEOUT_SECS);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSecs);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        PrintWriter pw = response.getWriter();
+        try {
+            pw.print(": connected\n\n");
+            pw.flush();
+            long lastWrite = System.currentTimeMillis();
+            long now;
+            while (!subscriber.isClosed() && (now = System.currentTimeMillis()) < deadline) {
+                LiveEventHub.Event event = subscriber.poll(LIVE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                long dropped = subscriber.takeDropped();
+                boolean written = false;
+                if (dropped > 0) {
+                    pw.printf("event: dropped\ndata: {\"count\":%d}\n\n", dropped);
+                    written = true;
+                }
+                if (event != null) {
+                    pw.printf("id: %d\nevent: %s\ndata: %s\n\n", event.id, event.type, event.data);
+                    written = true;
+                } else if (!written && now - lastWrite >= LIVE_KEEP_ALIVE_MILLIS) {
+                    pw.print(": keep-alive\n\n");
+                    written = true;
+                }
+                if (written) {
+                    pw.flush();
+                    lastWrite = now;
+                    if (pw.checkError()) {
+                        // Client went away
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscriber.close();
+        }
+    }
+
+    private static void writeSummary(JSONWriter jw, JSONRecording r) throws IOException {
+        jw.object();
+        jw.key("requestId").value(r.getRequestId());
+        jw.key("uri").value(r.getUri());
+        jw.key("start").value(r.getStart());
+        jw.key("timeTaken").value(r.getTimeTaken());
+        jw.key("size").value(r.size());
+        jw.endObject();
+    }
+
+    private void renderQueryStats(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        JSONWriter jw = new JSONWriter(response.getWriter());
+        if (queryStats == null) {
+            jw.object();
+            jw.key("error").value("Query statistics are disabled");
+            jw.endObject();
+            return;
+        }
+
+        long windowInSecs = getLongParameter(request, PARAM_WINDOW, queryStatsWindowInSecs);
+        int limit = (int)
+                Math.max(1, Math.min(getLongParameter(request, PARAM_LIMIT, DEFAULT_QUERY_STATS_LIMIT), MAX_PAGE_SIZE));
+        queryStats.toJson(jw, TimeUnit.SECONDS.toMillis(Math.min(windowInSecs, queryStatsWindowInSecs)), limit);
+    }
+
+    static long getLongParameter(HttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException ignore) {
+                // Fallback to default
+            }
+        }
+        return defaultValue;
+    }
+
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         if (req.getParameter(CLEAR) != null) {
@@ -238,19 +1228,21 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
     }
 
     private boolean prepareForGZipResponse(HttpServletRequest request, HttpServletResponse response) {
-        if (!gzipResponse) {
-            return false;
-        }
-
-        String acceptEncoding = request.getHeader("Accept-Encoding");
-        boolean acceptsGzip = acceptEncoding != null && accepts(acceptEncoding, "gzip");
-
+        boolean acceptsGzip = acceptsGZip(request);
         if (acceptsGzip) {
             response.setHeader("Content-Encoding", "gzip");
         }
         return acceptsGzip;
     }
 
+    private boolean acceptsGZip(HttpServletRequest request) {
+        if (!gzipResponse) {
+            return false;
+        }
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        return acceptEncoding != null && accepts(acceptEncoding, "gzip");
+    }
+
     /**
      * Returns true if the given accept header accepts the given value.
      * @param acceptHeader The accept header.
@@ -271,6 +1263,55 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
                 "<p class='statline'>Log Tracer Recordings: %d recordings, %s memory "
                         + "(Max %dMB, Expired in %d secs)</p>%n",
                 cache.size(), memorySize(), cacheSizeInMB, cacheDurationInSecs);
+        if (store != null) {
+            pw.printf(
+                    "<p class='statline'>Recording store: %d recordings, %s on disk</p>%n",
+                    store.size(), humanReadableByteCount(store.diskSize()));
+        }
+        SlabAllocator allocator = cache.getAllocator();
+        if (allocator != null) {
+            pw.printf(
+                    "<p class='statline'>Off heap storage: %s used, %s allocated</p>%n",
+                    humanReadableByteCount(allocator.getUsed()), humanReadableByteCount(allocator.getReserved()));
+        }
+        if (isUnderMemoryPressure()) {
+            pw.println("<p class='statline'>New recordings are paused due to memory pressure</p>");
+        }
+        pw.printf(
+                "<p class='statline'>Recordings created %d, fetched %d, missed %d, evicted %d by size and %d by "
+                        + "expiry of which %d never fetched. Finalization time p50 %d us, p99 %d us</p>%n",
+                metrics.getRecordingsCreated(),
+                metrics.getRecordingsFetched(),
+                metrics.getRecordingsMissed(),
+                metrics.getEvictedBySize(),
+                metrics.getEvictedByExpiry(),
+                metrics.getEvictedUnfetched(),
+                metrics.getFinalizationTimeP50Micros(),
+                metrics.getFinalizationTimeP99Micros());
+        pw.printf(
+                "<p class='statline'>Export recordings as newline delimited JSON: "
+                        + "<a href='%s/%s.json'>%s.json</a></p>%n",
+                LABEL, EXPORT, EXPORT);
+        pw.printf(
+                "<p class='statline'>List recordings as JSON: <a href='%s/%s.json'>%s.json</a></p>%n",
+                LABEL, LIST, LIST);
+        if (liveEvents != null) {
+            pw.printf(
+                    "<p class='statline'>Live events of in flight recordings (%d subscribers): "
+                            + "<a href='%s/%s.json'>%s.json</a></p>%n",
+                    liveEvents.getSubscriberCount(), LABEL, LIVE, LIVE);
+        }
+        if (searchMaxTerms > 0) {
+            pw.printf(
+                    "<p class='statline'>Search index: %d terms. Search recordings via "
+                            + "<a href='%s/%s.json?%s=level:ERROR'>%s.json?%s=&lt;field:value[*]&gt;</a></p>%n",
+                    cache.searchTermCount(), LABEL, SEARCH, PARAM_QUERY, SEARCH, PARAM_QUERY);
+        }
+        if (queryStats != null) {
+            pw.printf(
+                    "<p class='statline'>Query statistics of last %d secs: <a href='%s/%s.json'>%s.json</a></p>%n",
+                    queryStatsWindowInSecs, LABEL, QUERY_STATS, QUERY_STATS);
+        }
 
         pw.println("<div class='ui-widget-header ui-corner-top buttonGroup'>");
         pw.println("<span style='float: left; margin-left: 1em'>Tracer Recordings</span>");
@@ -283,20 +1324,128 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
         return humanReadableByteCount(cache.memorySize());
     }
 
-    private void renderRequests(PrintWriter pw) {
-        if (cache.size() > 0) {
-            pw.println("<ol>");
-            List<JSONRecording> recordings = cache.asList();
-            SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
-            Collections.sort(recordings);
-            for (JSONRecording r : recordings) {
-                String id = r.getRequestId();
-                String date = sdf.format(new Date(r.getStart()));
-                pw.printf(
-                        "<li>%s - <a href='%s/%s.json'>%s</a> - %s (%s) (%dms)</li>",
-                        date, LABEL, id, id, r.getUri(), humanReadableByteCount(r.size()), r.getTimeTaken());
+    private void renderRequests(HttpServletRequest request, PrintWriter pw) {
+        int total = cache.size();
+        if (total == 0) {
+            return;
+        }
+        Page page = Page.fromRequest(request);
+        pw.print("<p class='statline'>Sort by");
+        for (RecordingIndex.Sort sort : RecordingIndex.Sort.values()) {
+            // Clicking the current sort again flips the order
+            boolean descending = sort == page.sort ? !page.descending : sort != RecordingIndex.Sort.URI;
+            pw.printf(
+                    " <a href='%s'>%s</a>",
+                    page.link(sort, descending, 0), sort.name().toLowerCase(Locale.ENGLISH));
+        }
+        pw.println("</p>");
+
+        pw.printf("<ol start='%d'>%n", page.offset + 1);
+        for (JSONRecording r : page.fetch(cache)) {
+            String id = r.getRequestId();
+            String date = DATE_FORMAT.format(Instant.ofEpochMilli(r.getStart()));
+            pw.printf(
+                    "<li>%s - <a href='%s/%s.json'>%s</a> - %s (%s) (%dms)</li>",
+                    date,
+                    LABEL,
+                    id,
+                    id,
+                    Util.escapeHtml(r.getUri()),
+                    humanReadableByteCount(r.size()),
+                    r.getTimeTaken());
+        }
+        pw.println("</ol>");
+
+        pw.print("<p class='statline'>");
+        if (page.offset > 0) {
+            pw.printf(
+                    "<a href='%s'>Previous</a> ",
+                    page.link(page.sort, page.descending, Math.max(0, page.offset - page.limit)));
+        }
+        pw.printf(
+                "Showing %d - %d of %d",
+                Math.min(total, page.offset + 1), Math.min(total, page.offset + page.limit), total);
+        if (page.offset + page.limit < total) {
+            pw.printf(" <a href='%s'>Next</a>", page.link(page.sort, page.descending, page.offset + page.limit));
+        }
+        pw.println("</p>");
+    }
+
+    /**
+     * Page of the recording listing as requested via the sort, order, offset and
+     * limit parameters
+     */
+    static final class Page {
+        final RecordingIndex.Sort sort;
+        final boolean descending;
+        final int offset;
+        final int limit;
+        final long from;
+        final long to;
+
+        Page(RecordingIndex.Sort sort, boolean descending, int offset, int limit, long from, long to) {
+            this.sort = sort;
+            this.descending = descending;
+            this.offset = offset;
+            this.limit = limit;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Creates the page for the request parameters. If a time range is given via
+         * the from and to parameters the recordings are listed in start order
+         */
+        static Page fromRequest(HttpServletRequest request) {
+            long from = getLongParameter(request, RecordingExporter.PARAM_FROM, 0);
+            long to = getLongParameter(request, RecordingExporter.PARAM_TO, Long.MAX_VALUE);
+            RecordingIndex.Sort sort = isRange(from, to)
+                    ? RecordingIndex.Sort.START
+                    : RecordingIndex.Sort.fromName(request.getParameter(PARAM_SORT), RecordingIndex.Sort.START);
+            boolean descending = "desc".equalsIgnoreCase(request.getParameter(PARAM_ORDER));
+            long offset = getLongParameter(request, PARAM_OFFSET, 0);
+            long limit = getLongParameter(request, PARAM_LIMIT, DEFAULT_PAGE_SIZE);
+            return new Page(
+                    sort,
+                    descending,
+                    (int) Math.max(0, Math.min(offset, Integer.MAX_VALUE)),
+                    (int) Math.max(1, Math.min(limit, MAX_PAGE_SIZE)),
+                    from,
+                    to);
+        }
+
+        private static boolean isRange(long from, long to) {
+            return from > 0 || to < Long.MAX_VALUE;
+        }
+
+        List<JSONRecording> fetch(BoundedCache cache) {
+            if (isRange(from, to)) {
+                return cache.range(from, to, descending, offset, limit);
+            }
+            return cache.page(sort, descending, offset, limit);
+        }
+
+        String order() {
+            return descending ? "desc" : "asc";
+        }
+
+        String link(RecordingIndex.Sort sort, boolean descending, int offset) {
+            String link = String.format(
+                    "%s?%s=%s&amp;%s=%s&amp;%s=%d&amp;%s=%d",
+                    LABEL,
+                    PARAM_SORT,
+                    sort.name().toLowerCase(Locale.ENGLISH),
+                    PARAM_ORDER,
+                    descending ? "desc" : "asc",
+                    PARAM_OFFSET,
+                    offset,
+                    PARAM_LIMIT,
+                    limit);
+            if (isRange(from, to)) {
+                link += String.format(
+                        "&amp;%s=%d&amp;%s=%d", RecordingExporter.PARAM_FROM, from, RecordingExporter.PARAM_TO, to);
             }
-            pw.println("</ol>");
+            return link;
         }
     }
 
@@ -317,21 +1466,99 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
         if (request.getHeader(HEADER_TRACER_RECORDING) == null) {
             return Recording.NOOP;
         }
+        return startRecording(request, response, false, false);
+    }
+
+    @Override
+    public Recording startSampledRecording(HttpServletRequest request, HttpServletResponse response) {
+        return startRecording(request, response, true, tailLatencyThresholdMillis > 0);
+    }
+
+    @Override
+    public Recording startAutoTracedRecording(HttpServletRequest request, HttpServletResponse response) {
+        return startRecording(request, response, true, false);
+    }
 
+    /**
+     * Starts the recording. For sampled requests the client did not ask for tracing
+     * so the response is left as is and the recording can be found via the listing
+     *
+     * @param tail true if it is decided only at the end whether the recording is kept
+     */
+    private Recording startRecording(
+            HttpServletRequest request, HttpServletResponse response, boolean sampled, boolean tail) {
         if (request.getAttribute(ATTR_RECORDING) != null) {
             // Already processed
             return getRecordingForRequest(request);
         }
 
+        if (isUnderMemoryPressure()) {
+            // Tracing must not turn a heap problem into an outage
+            return Recording.NOOP;
+        }
+
         String requestId = generateRequestId();
         JSONRecording recording = record(requestId, request);
+        if (sampled) {
+            if (tail) {
+                // Decide at the end whether the request is worth keeping
+                recording.bufferTail(tailMaxLogEntries);
+                request.setAttribute(ATTR_RESPONSE, response);
+            }
+            return recording;
+        }
 
+        int version = getProtocolVersion(request);
         response.setHeader(HEADER_TRACER_REQUEST_ID, requestId);
-        response.setHeader(HEADER_TRACER_PROTOCOL_VERSION, String.valueOf(TRACER_PROTOCOL_VERSION));
+        response.setHeader(HEADER_TRACER_PROTOCOL_VERSION, String.valueOf(version));
+        if (version >= TRACER_PROTOCOL_VERSION_INLINE) {
+            recording.enableSummary();
+            request.setAttribute(ATTR_RESPONSE, response);
+            offerSummaryTrailer(response, recording);
+        }
 
         return recording;
     }
 
+    /**
+     * Returns the protocol version to use i.e. the one requested by the client if
+     * supported and the default version otherwise
+     */
+    private static int getProtocolVersion(HttpServletRequest request) {
+        String requested = request.getHeader(HEADER_TRACER_PROTOCOL_VERSION);
+        if (requested != null) {
+            try {
+                int version = Integer.parseInt(requested.trim());
+                if (version >= TRACER_PROTOCOL_VERSION && version <= TRACER_PROTOCOL_VERSION_INLINE) {
+                    return version;
+                }
+            } catch (NumberFormatException ignore) {
+                // Fall back to default
+            }
+        }
+        return TRACER_PROTOCOL_VERSION;
+    }
+
+    /**
+     * Registers the summary as trailer so that it reaches the client even if the
+     * response gets committed while the request is processed. Trailers are only
+     * supported for chunked HTTP/1.1 and HTTP/2 responses. If the response is still
+     * open at the end the summary goes out as header instead, see {@link #sendSummary}
+     */
+    private static void offerSummaryTrailer(HttpServletResponse response, JSONRecording recording) {
+        try {
+            response.setTrailerFields(() -> {
+                String summary = recording.getSummary();
+                return summary != null && !response.containsHeader(HEADER_TRACER_SUMMARY)
+                        ? Collections.singletonMap(HEADER_TRACER_SUMMARY, summary)
+                        : Collections.emptyMap();
+            });
+            response.setHeader("Trailer", HEADER_TRACER_SUMMARY);
+        } catch (IllegalStateException e) {
+            log.debug("Trailers not supported for the response. Summary would only be sent as header", e);
+        }
+    }
+
     @Override
     public Recording getRecordingForRequest(HttpServletRequest request) {
         Recording recording = (Recording) request.getAttribute(ATTR_RECORDING);
@@ -342,13 +1569,59 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
     }
 
     @Override
-    public void endRecording(HttpServletRequest httpRequest, Recording recording) {
+    public void endRecording(HttpServletRequest httpRequest, Recording recording, boolean failed) {
         if (recording instanceof JSONRecording) {
             JSONRecording r = (JSONRecording) recording;
+            HttpServletResponse response = (HttpServletResponse) httpRequest.getAttribute(ATTR_RESPONSE);
+            if (r.isTail() && !failed && !isWorthKeeping(r, response)) {
+                r.discard();
+                metrics.discarded.increment();
+                httpRequest.removeAttribute(ATTR_RECORDING);
+                httpRequest.removeAttribute(ATTR_RESPONSE);
+                return;
+            }
+            long start = System.nanoTime();
             r.done();
+            metrics.finalized.increment();
+            metrics.finalizationTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            // Hand off the query stats before caching so that they are not retained
+            Collection<QueryHotspotDetector.ShapeStats> shapeStats = r.takeQueryStats();
+            if (store != null) {
+                store.add(r);
+            }
             cache.put(r.getRequestId(), r);
+            if (queryStats != null) {
+                queryStats.add(shapeStats);
+            }
+            if (response != null) {
+                sendSummary(response, r.getSummary());
+            }
         }
         httpRequest.removeAttribute(ATTR_RECORDING);
+        httpRequest.removeAttribute(ATTR_RESPONSE);
+    }
+
+    /**
+     * Sends the summary as header if the response is not committed yet. The trailer
+     * advertised at the start is then withdrawn and its supplier finds the header and
+     * sends nothing, so the client sees the summary exactly once
+     */
+    private static void sendSummary(HttpServletResponse response, @Nullable String summary) {
+        if (summary == null || response.isCommitted()) {
+            return;
+        }
+        response.setHeader(HEADER_TRACER_SUMMARY, summary);
+        response.setHeader("Trailer", null);
+    }
+
+    /**
+     * Returns true if a recording in tail mode should be kept i.e. the request was
+     * slow, failed with a 5xx status or logged warnings or errors
+     */
+    private boolean isWorthKeeping(JSONRecording r, @Nullable HttpServletResponse response) {
+        return r.getElapsedMillis() >= tailLatencyThresholdMillis
+                || (response != null && response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR)
+                || r.getWarnCount() > 0;
     }
 
     Recording getRecording(String requestId) {
@@ -357,13 +1630,21 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
     }
 
     private JSONRecording record(String requestId, HttpServletRequest request) {
-        JSONRecording data = new JSONRecording(requestId, request, compressRecording);
+        // With recompression of aging recordings in place the payload is compressed
+        // fast at first as most recordings get read soon after, if at all
+        int level = recompressAfterSecs > 0 ? Deflater.BEST_SPEED : JSONRecording.DEFAULT_COMPRESSION_LEVEL;
+        JSONRecording data = new JSONRecording(requestId, request, compressRecording, queryHotspotThreshold, level);
+        data.setMaxSearchTerms(searchMaxTerms);
+        if (liveEvents != null) {
+            data.setLiveEvents(liveEvents);
+        }
         request.setAttribute(ATTR_RECORDING, data);
+        metrics.created.increment();
         return data;
     }
 
     private static String generateRequestId() {
-        return UUID.randomUUID().toString();
+        return RequestIdGenerator.INSTANCE.next();
     }
 
     /**
@@ -386,5 +1667,15 @@ class TracerLogServlet extends SimpleWebConsolePlugin implements TraceLogRecorde
 
     void resetCache() {
         cache.clear();
+        if (store != null) {
+            try {
+                store.clear();
+            } catch (IOException e) {
+                log.warn("Error occurred while clearing the recording store", e);
+            }
+        }
+        if (queryStats != null) {
+            queryStats.clear();
+        }
     }
 }
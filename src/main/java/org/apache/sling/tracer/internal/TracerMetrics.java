@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the recording lifecycle and the recording cache. Updates use
+ * {@link LongAdder} so that concurrent requests do not contend on them
+ */
+class TracerMetrics implements TracerStatsMBean {
+    final LongAdder created = new LongAdder();
+    final LongAdder sampled = new LongAdder();
+    final LongAdder autoTraced = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder discarded = new LongAdder();
+    final LongAdder finalized = new LongAdder();
+    final LongAdder fetched = new LongAdder();
+    final LongAdder missed = new LongAdder();
+    final LongAdder evictedBySize = new LongAdder();
+    final LongAdder evictedByExpiry = new LongAdder();
+    final LongAdder evictedUnfetched = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder evictionTimeNanos = new LongAdder();
+    final Histogram finalizationTime = new Histogram();
+
+    void evicted(boolean expired, boolean wasFetched) {
+        if (expired) {
+            evictedByExpiry.increment();
+        } else {
+            evictedBySize.increment();
+        }
+        if (!wasFetched) {
+            evictedUnfetched.increment();
+        }
+    }
+
+    @Override
+    public long getRecordingsCreated() {
+        return created.sum();
+    }
+
+    @Override
+    public long getRequestsSampled() {
+        return sampled.sum();
+    }
+
+    @Override
+    public long getRequestsAutoTraced() {
+        return autoTraced.sum();
+    }
+
+    @Override
+    public long getTracingRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getRecordingsDiscarded() {
+        return discarded.sum();
+    }
+
+    @Override
+    public long getRecordingsFinalized() {
+        return finalized.sum();
+    }
+
+    @Override
+    public long getRecordingsFetched() {
+        return fetched.sum();
+    }
+
+    @Override
+    public long getRecordingsMissed() {
+        return missed.sum();
+    }
+
+    @Override
+    public long getEvictedBySize() {
+        return evictedBySize.sum();
+    }
+
+    @Override
+    public long getEvictedByExpiry() {
+        return evictedByExpiry.sum();
+    }
+
+    @Override
+    public long getEvictedUnfetched() {
+        return evictedUnfetched.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getEvictionTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(evictionTimeNanos.sum());
+    }
+
+    @Override
+    public long getFinalizationTimeMeanMicros() {
+        return finalizationTime.getMean();
+    }
+
+    @Override
+    public long getFinalizationTimeP50Micros() {
+        return finalizationTime.getPercentile(50);
+    }
+
+    @Override
+    public long getFinalizationTimeP99Micros() {
+        return finalizationTime.getPercentile(99);
+    }
+
+    @Override
+    public long getFinalizationTimeMaxMicros() {
+        return finalizationTime.getMax();
+    }
+
+    /**
+     * Histogram of durations in micros with power of two buckets. Percentiles are
+     * reported as the upper bound of the bucket they fall in
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private volatile long max;
+
+        void record(long duration, TimeUnit unit) {
+            long micros = Math.max(0, unit.toMicros(duration));
+            counts.incrementAndGet(bucket(micros));
+            count.increment();
+            sum.add(micros);
+            if (micros > max) {
+                synchronized (this) {
+                    max = Math.max(max, micros);
+                }
+            }
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getMean() {
+            long c = count.sum();
+            return c == 0 ? 0 : sum.sum() / c;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        long getPercentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Bucket i holds the values in [2^(i-1), 2^i) with bucket 0 holding 0
+         */
+        private static int bucket(long micros) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : (1L << bucket) - 1;
+        }
+    }
+}
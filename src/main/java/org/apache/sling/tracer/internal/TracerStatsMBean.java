@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+/**
+ * Statistics of the Log Tracer recordings. Counters are cumulative since the
+ * tracer got activated
+ */
+public interface TracerStatsMBean {
+    String TYPE = "LogTracerStats";
+
+    long getRecordingsCreated();
+
+    /**
+     * Number of requests traced due to sampling without the client asking for it
+     */
+    long getRequestsSampled();
+
+    /**
+     * Number of requests traced as the latency of their path regressed
+     */
+    long getRequestsAutoTraced();
+
+    /**
+     * Number of requests which asked for tracing or were selected by sampling or
+     * auto tracing but were served without it as the rate or concurrency limit was
+     * reached
+     */
+    long getTracingRejected();
+
+    /**
+     * Number of sampled recordings dropped at the end of the request as it was
+     * neither slow nor failing
+     */
+    long getRecordingsDiscarded();
+
+    long getRecordingsFinalized();
+
+    long getRecordingsFetched();
+
+    long getRecordingsMissed();
+
+    long getEvictedBySize();
+
+    long getEvictedByExpiry();
+
+    /**
+     * Number of evicted recordings which were never fetched
+     */
+    long getEvictedUnfetched();
+
+    /**
+     * Payload bytes added to the cache
+     */
+    long getBytesIn();
+
+    /**
+     * Bytes sent to clients fetching recordings
+     */
+    long getBytesOut();
+
+    /**
+     * Total time spent in making room in the cache for new recordings
+     */
+    long getEvictionTimeMillis();
+
+    long getFinalizationTimeMeanMicros();
+
+    long getFinalizationTimeP50Micros();
+
+    long getFinalizationTimeP99Micros();
+
+    long getFinalizationTimeMaxMicros();
+}
@@ -61,4 +61,61 @@ class Util {
 
         return count;
     }
+
+    /**
+     * Escapes the characters with special meaning in html text and attribute values
+     */
+    static String escapeHtml(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Approximate heap retained by a String assuming a 64 bit JVM with compressed
+     * oops and compact strings i.e. a 24 byte String object and a byte[] with
+     * one byte per char which holds for the mostly ASCII content seen here
+     */
+    static long estimateSize(String s) {
+        if (s == null) {
+            return 0;
+        }
+        return 24 + estimateArraySize(s.length());
+    }
+
+    /**
+     * Approximate heap retained by a byte[] of given length i.e. the 16 byte
+     * array header plus the content padded to the 8 byte object alignment
+     */
+    static long estimateArraySize(int length) {
+        return align(16 + length);
+    }
+
+    static long align(long size) {
+        return (size + 7) & ~7L;
+    }
 }
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Retains the top K recordings by value. All other recordings are evicted in least
+ * recently accessed order and the retained ones only once nothing else is left, lowest
+ * value first. This ensures that the few slow or failing requests are not pushed out
+ * by lots of fast ones while recently performed requests remain accessible.
+ *
+ * Recordings do not change once added to the cache and hence their value is fixed
+ */
+class ValueEvictionPolicy implements EvictionPolicy {
+    /**
+     * An error is considered as interesting as a request taking this many millis
+     */
+    static final double ERROR_WEIGHT = 5000;
+
+    static final double QUERY_WEIGHT = 10;
+
+    private final int retainedCount;
+
+    private final TreeSet<Ranked> retained = new TreeSet<>();
+
+    private final Map<String, Ranked> retainedById = new HashMap<>();
+
+    private long counter;
+
+    public ValueEvictionPolicy(int retainedCount) {
+        this.retainedCount = retainedCount;
+    }
+
+    /**
+     * Computes the value of a recording based on time taken, errors logged and number
+     * of queries performed. As larger recordings take up more space the value is
+     * scaled down logarithmically by size
+     */
+    static double score(JSONRecording recording) {
+        double score = recording.getTimeTaken();
+        if (recording.getErrorCount() > 0) {
+            score += ERROR_WEIGHT;
+        }
+        score += recording.getQueryCount() * QUERY_WEIGHT;
+        double sizeInKB = recording.size() / 1024.0;
+        return score / (Math.log(sizeInKB + 2) / Math.log(2));
+    }
+
+    @Override
+    public synchronized void added(JSONRecording recording) {
+        if (retainedCount <= 0) {
+            return;
+        }
+        Ranked ranked = new Ranked(recording, score(recording), counter++);
+        if (retained.size() < retainedCount) {
+            retain(ranked);
+        } else if (ranked.compareTo(retained.first()) > 0) {
+            // Least valuable retained recording now becomes a normal one
+            Ranked demoted = retained.pollFirst();
+            retainedById.remove(demoted.recording.getRequestId());
+            retain(ranked);
+        }
+    }
+
+    @Override
+    public synchronized void removed(JSONRecording recording) {
+        Ranked ranked = retainedById.get(recording.getRequestId());
+        if (ranked != null && ranked.recording == recording) {
+            retainedById.remove(recording.getRequestId());
+            retained.remove(ranked);
+        }
+    }
+
+    @Override
+    public synchronized boolean isRetained(JSONRecording recording) {
+        Ranked ranked = retainedById.get(recording.getRequestId());
+        return ranked != null && ranked.recording == recording;
+    }
+
+    @Override
+    public synchronized JSONRecording leastValuable() {
+        return retained.isEmpty() ? null : retained.first().recording;
+    }
+
+    synchronized int getRetainedCount() {
+        return retained.size();
+    }
+
+    private void retain(Ranked ranked) {
+        Ranked old = retainedById.put(ranked.recording.getRequestId(), ranked);
+        if (old != null) {
+            retained.remove(old);
+        }
+        retained.add(ranked);
+    }
+
+    private static final class Ranked implements Comparable<Ranked> {
+        final JSONRecording recording;
+        final double score;
+        final long seq;
+
+        Ranked(JSONRecording recording, double score, long seq) {
+            this.recording = recording;
+            this.score = score;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ranked o) {
+            int result = Double.compare(score, o.score);
+            if (result == 0) {
+                // Newer recordings are considered more valuable
+                result = Long.compare(seq, o.seq);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AutoTracerTest {
+
+    @Test
+    public void threshold() throws Exception {
+        AutoTracer tracer = new AutoTracer(100, 0, 20, 2, 60_000, 10, 60_000, "oak-query");
+        long now = 1000;
+        recordWindow(tracer, "/a", 50, now);
+        assertEquals(50, tracer.getStats("/a").getLastP95());
+        assertFalse(tracer.shouldTrace("/a"));
+
+        // Only one request in the window is slow which does not move the p95
+        for (int i = 0; i < 20; i++) {
+            tracer.record("/a", i == 0 ? 500 : 50, now);
+        }
+        assertFalse(tracer.shouldTrace("/a"));
+
+        recordWindow(tracer, "/a", 150, now);
+        assertEquals(150, tracer.getStats("/a").getLastP95());
+        assertTrue(tracer.shouldTrace("/a"));
+        assertTrue(tracer.shouldTrace("/a"));
+        assertFalse(tracer.shouldTrace("/a"));
+        assertFalse(tracer.shouldTrace("/b"));
+    }
+
+    @Test
+    public void cooldown() throws Exception {
+        AutoTracer tracer = new AutoTracer(100, 0, 20, 1, 60_000, 10, 60_000, "oak-query");
+        long now = 1000;
+        recordWindow(tracer, "/a", 150, now);
+        assertTrue(tracer.shouldTrace("/a"));
+
+        // Still slow but within the cooldown
+        recordWindow(tracer, "/a", 150, now + 30_000);
+        assertFalse(tracer.shouldTrace("/a"));
+
+        recordWindow(tracer, "/a", 150, now + 61_000);
+        assertTrue(tracer.shouldTrace("/a"));
+    }
+
+    @Test
+    public void baselineFactor() throws Exception {
+        AutoTracer tracer = new AutoTracer(100, 2, 20, 1, 0, 10, 60_000, "oak-query");
+        long now = 1000;
+        // Path which is always slow does not regress
+        recordWindow(tracer, "/a", 200, now);
+        recordWindow(tracer, "/a", 300, now);
+        assertFalse(tracer.shouldTrace("/a"));
+        assertEquals(212, tracer.getStats("/a").getBaseline());
+
+        recordWindow(tracer, "/a", 500, now);
+        assertTrue(tracer.shouldTrace("/a"));
+        // Regressed window does not shift the baseline
+        assertEquals(212, tracer.getStats("/a").getBaseline());
+    }
+
+    @Test
+    public void maxPaths() throws Exception {
+        AutoTracer tracer = new AutoTracer(100, 0, 10, 1, 0, 2, 60_000, "oak-query");
+        tracer.record("/a", 10, 1000);
+        tracer.record("/b", 10, 1010);
+
+        // All paths are recent so the least recently requested one gives way
+        tracer.record("/c", 10, 1020);
+        assertNull(tracer.getStats("/a"));
+        assertNotNull(tracer.getStats("/b"));
+        assertNotNull(tracer.getStats("/c"));
+
+        // No further sweep within a second
+        tracer.record("/d", 10, 1500);
+        assertNull(tracer.getStats("/d"));
+
+        // Idle path makes room
+        tracer.record("/b", 10, 30_000);
+        tracer.record("/d", 10, 70_000);
+        assertNull(tracer.getStats("/c"));
+        assertNotNull(tracer.getStats("/b"));
+        assertNotNull(tracer.getStats("/d"));
+        assertEquals(2, tracer.getPathCount());
+        assertNull(tracer.getStats(null));
+    }
+
+    private static void recordWindow(AutoTracer tracer, String path, long timeTaken, long now) {
+        for (int i = 0; i < 20; i++) {
+            tracer.record(path, timeTaken, now);
+        }
+    }
+}
@@ -18,57 +18,329 @@
  */
 package org.apache.sling.tracer.internal;
 
+import javax.servlet.http.HttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import ch.qos.logback.classic.Level;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
 
 public class BoundedCacheTest {
+    private static final Logger log = LoggerFactory.getLogger(BoundedCacheTest.class);
+    private static final long OVERHEAD = TracerLogServlet.BoundedCache.ENTRY_OVERHEAD;
 
     @Test
     public void testMemoryBoundary() {
         final TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(2, 10);
-        JSONRecording recordingA = Mockito.mock(JSONRecording.class);
-        Mockito.when(recordingA.size()).thenReturn(1 * 1024 * 1024);
-        Mockito.when(recordingA.getRequestId()).thenReturn("a");
-        JSONRecording recordingB = Mockito.mock(JSONRecording.class);
-        Mockito.when(recordingB.size()).thenReturn(1 * 1000 * 1000);
-        Mockito.when(recordingB.getRequestId()).thenReturn("b");
-
-        cache.put("a", recordingA);
-        cache.put("b", recordingB);
-
-        Assert.assertEquals(recordingA.size() + recordingB.size(), cache.memorySize());
-        Assert.assertNotNull(cache.get("a"));
-        Assert.assertNotNull(cache.get("b"));
-
-        JSONRecording recordingC = Mockito.mock(JSONRecording.class);
-        Mockito.when(recordingC.size()).thenReturn(1 * 1024 * 1024);
-        Mockito.when(recordingC.getRequestId()).thenReturn("c");
-        cache.put("c", recordingC);
-
-        Assert.assertNull(cache.get("a"));
-        Assert.assertNotNull(cache.get("b"));
-        Assert.assertNotNull(cache.get("c"));
-        Assert.assertEquals(recordingB.size() + recordingC.size(), cache.memorySize());
+        try {
+            JSONRecording recordingA = Mockito.mock(JSONRecording.class);
+            Mockito.when(recordingA.size()).thenReturn(1 * 1024 * 1024);
+            Mockito.when(recordingA.getRetainedSize()).thenReturn((long) (1 * 1024 * 1024));
+            Mockito.when(recordingA.getRequestId()).thenReturn("a");
+            JSONRecording recordingB = Mockito.mock(JSONRecording.class);
+            Mockito.when(recordingB.size()).thenReturn(1 * 1000 * 1000);
+            Mockito.when(recordingB.getRetainedSize()).thenReturn((long) (1 * 1000 * 1000));
+            Mockito.when(recordingB.getRequestId()).thenReturn("b");
+
+            cache.put("a", recordingA);
+            cache.put("b", recordingB);
+
+            Assert.assertEquals(
+                    recordingA.getRetainedSize() + recordingB.getRetainedSize() + 2 * OVERHEAD, cache.memorySize());
+            Assert.assertNotNull(cache.get("a"));
+            Assert.assertNotNull(cache.get("b"));
+
+            JSONRecording recordingC = Mockito.mock(JSONRecording.class);
+            Mockito.when(recordingC.size()).thenReturn(1 * 1024 * 1024);
+            Mockito.when(recordingC.getRetainedSize()).thenReturn((long) (1 * 1024 * 1024));
+            Mockito.when(recordingC.getRequestId()).thenReturn("c");
+            cache.put("c", recordingC);
+
+            Assert.assertNull(cache.get("a"));
+            Assert.assertNotNull(cache.get("b"));
+            Assert.assertNotNull(cache.get("c"));
+            Assert.assertEquals(
+                    recordingB.getRetainedSize() + recordingC.getRetainedSize() + 2 * OVERHEAD, cache.memorySize());
+        } finally {
+            cache.close();
+        }
     }
 
     @Test
     public void testTimeBoundary() throws InterruptedException {
         final TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(2, 1);
-        JSONRecording recordingA = Mockito.mock(JSONRecording.class);
-        Mockito.when(recordingA.size()).thenReturn(1 * 1024 * 1024);
-        Mockito.when(recordingA.getRequestId()).thenReturn("a");
-        JSONRecording recordingB = Mockito.mock(JSONRecording.class);
-        Mockito.when(recordingB.size()).thenReturn(1 * 1000 * 1000);
-        Mockito.when(recordingB.getRequestId()).thenReturn("b");
-
-        cache.put("a", recordingA);
-        cache.put("b", recordingB);
-
-        Thread.sleep(2000); // cache should be empty now
-        Assert.assertEquals(0L, cache.memorySize());
-        Assert.assertNull(cache.get("a"));
-        Assert.assertNull(cache.get("b"));
-        Assert.assertEquals(0, cache.size());
+        try {
+            JSONRecording recordingA = Mockito.mock(JSONRecording.class);
+            Mockito.when(recordingA.size()).thenReturn(1 * 1024 * 1024);
+            Mockito.when(recordingA.getRetainedSize()).thenReturn((long) (1 * 1024 * 1024));
+            Mockito.when(recordingA.getRequestId()).thenReturn("a");
+            JSONRecording recordingB = Mockito.mock(JSONRecording.class);
+            Mockito.when(recordingB.size()).thenReturn(1 * 1000 * 1000);
+            Mockito.when(recordingB.getRetainedSize()).thenReturn((long) (1 * 1000 * 1000));
+            Mockito.when(recordingB.getRequestId()).thenReturn("b");
+
+            cache.put("a", recordingA);
+            cache.put("b", recordingB);
+
+            Thread.sleep(2000); // cache should be empty now
+            Assert.assertEquals(0L, cache.memorySize());
+            Assert.assertNull(cache.get("a"));
+            Assert.assertNull(cache.get("b"));
+            Assert.assertEquals(0, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyAccessedEvicted() {
+        final TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(2, 10);
+        try {
+            cache.put("a", recording("a", 700 * 1024));
+            cache.put("b", recording("b", 700 * 1024));
+            cache.put("c", recording("c", 600 * 1024));
+
+            // Access a so that b becomes the eldest
+            Assert.assertNotNull(cache.get("a"));
+            cache.put("d", recording("d", 200 * 1024));
+
+            Assert.assertNull(cache.get("b"));
+            Assert.assertNotNull(cache.get("a"));
+            Assert.assertNotNull(cache.get("c"));
+            Assert.assertNotNull(cache.get("d"));
+            Assert.assertEquals(3, cache.asList().size());
+            Assert.assertEquals(1500 * 1024 + 3 * OVERHEAD, cache.memorySize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRecompression() throws Exception {
+        for (boolean offHeap : new boolean[] {false, true}) {
+            final TracerLogServlet.BoundedCache cache =
+                    new TracerLogServlet.BoundedCache(2, 60, EvictionPolicy.LRU, offHeap, 60);
+            try {
+                JSONRecording recording = compressibleRecording(Deflater.BEST_SPEED);
+                StringWriter expected = new StringWriter();
+                recording.render(expected);
+                cache.put("a", recording);
+                long memorySize = cache.memorySize();
+                int size = recording.size();
+
+                // Recent recordings are left as is
+                cache.recompress(System.currentTimeMillis());
+                Assert.assertEquals(Deflater.BEST_SPEED, recording.getCompressionLevel());
+
+                // Payload opened before recompression keeps its level, size and content
+                JSONRecording.OpenPayload opened = recording.openPayload();
+                cache.recompress(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2));
+                Assert.assertEquals(Deflater.BEST_COMPRESSION, recording.getCompressionLevel());
+                Assert.assertEquals(Deflater.BEST_SPEED, opened.getCompressionLevel());
+                Assert.assertEquals(size, opened.length());
+                ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                opened.write(gzipped, true, 0, -1);
+                opened.close();
+                Assert.assertEquals(size, gzipped.size());
+                Assert.assertEquals(
+                        expected.toString(),
+                        IOUtils.toString(
+                                new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray())),
+                                StandardCharsets.UTF_8));
+                Assert.assertTrue(recording.size() < size);
+                Assert.assertTrue(cache.memorySize() < memorySize);
+
+                StringWriter actual = new StringWriter();
+                Assert.assertTrue(cache.get("a").render(actual));
+                Assert.assertEquals(expected.toString(), actual.toString());
+                if (offHeap) {
+                    Assert.assertEquals(
+                            recording.getOffHeapSize(), cache.getAllocator().getUsed());
+                }
+            } finally {
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    public void testExpiryOnlyChecksEldest() {
+        final TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(2, 10);
+        try {
+            cache.put("a", recording("a", 1024));
+            cache.put("b", recording("b", 1024));
+
+            cache.expire(System.currentTimeMillis());
+            Assert.assertEquals(2, cache.size());
+
+            cache.expire(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(11));
+            Assert.assertEquals(0, cache.size());
+            Assert.assertEquals(0, cache.memorySize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Contention benchmark. Multiple threads concurrently put and read recordings
+     * while the cache is constantly evicting. Checks that the size accounting remains
+     * consistent and logs the achieved throughput
+     */
+    @Test
+    public void testContention() throws Exception {
+        final TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(1, 60);
+        try {
+            final int threadCount = 8;
+            final int opsPerThread = 20000;
+            final int recordingSize = 10 * 1024;
+            final JSONRecording[] recordings = new JSONRecording[500];
+            final String[] ids = new String[recordings.length];
+            for (int i = 0; i < recordings.length; i++) {
+                ids[i] = "r" + i;
+                // Stub only mocks do not record invocations which would otherwise dominate the timings
+                recordings[i] =
+                        Mockito.mock(JSONRecording.class, Mockito.withSettings().stubOnly());
+                Mockito.when(recordings[i].size()).thenReturn(recordingSize);
+                Mockito.when(recordings[i].getRetainedSize()).thenReturn((long) recordingSize);
+            }
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threadCount);
+            final AtomicLong hits = new AtomicLong();
+            for (int t = 0; t < threadCount; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                        for (int i = 0; i < opsPerThread; i++) {
+                            int index = rnd.nextInt(recordings.length);
+                            if (rnd.nextInt(4) == 0) {
+                                cache.put(ids[index], recordings[index]);
+                            } else if (cache.get(ids[index]) != null) {
+                                hits.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                thread.start();
+            }
+
+            long startTime = System.nanoTime();
+            start.countDown();
+            Assert.assertTrue(done.await(1, TimeUnit.MINUTES));
+            long timeTaken = System.nanoTime() - startTime;
+
+            long totalOps = (long) threadCount * opsPerThread;
+            log.info(
+                    "{} threads performed {} cache operations in {} ms ({} ops/ms), hits {}",
+                    threadCount,
+                    totalOps,
+                    TimeUnit.NANOSECONDS.toMillis(timeTaken),
+                    totalOps * 1000000 / Math.max(1, timeTaken),
+                    hits.get());
+
+            Assert.assertTrue(cache.memorySize() <= 1024 * 1024);
+            Assert.assertEquals((long) cache.size() * (recordingSize + OVERHEAD), cache.memorySize());
+            Assert.assertEquals(cache.size(), cache.asList().size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static JSONRecording compressibleRecording(int compressionLevel) {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.getMethod()).thenReturn("GET");
+        JSONRecording recording = new JSONRecording("a", request, true, 10, compressionLevel);
+        TracerConfig tc = new TracerConfig("foo", Level.DEBUG);
+        for (int i = 0; i < 2000; i++) {
+            recording.log(
+                    tc,
+                    Level.DEBUG,
+                    "org.apache.sling.foo.Bar",
+                    MessageFormatter.format("Resolved resource {} with type {}", "/content/page" + i, "foo/page"));
+        }
+        recording.done();
+        return recording;
+    }
+
+    @Test
+    public void testPaging() {
+        final TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(2, 10);
+        try {
+            for (int i = 0; i < 10; i++) {
+                JSONRecording r = recording("r" + i, 10 * (i + 1));
+                Mockito.when(r.getStart()).thenReturn(1000L + i);
+                Mockito.when(r.getTimeTaken()).thenReturn(100L - i);
+                Mockito.when(r.getUri()).thenReturn("/content/" + (char) ('z' - i));
+                cache.put("r" + i, r);
+            }
+
+            Assert.assertEquals(ids("r0", "r1", "r2"), requestIds(cache.page(RecordingIndex.Sort.START, false, 0, 3)));
+            Assert.assertEquals(ids("r9", "r8"), requestIds(cache.page(RecordingIndex.Sort.START, true, 0, 2)));
+            Assert.assertEquals(
+                    ids("r9", "r8", "r7"), requestIds(cache.page(RecordingIndex.Sort.DURATION, false, 0, 3)));
+            Assert.assertEquals(ids("r8", "r7"), requestIds(cache.page(RecordingIndex.Sort.SIZE, true, 1, 2)));
+            Assert.assertEquals(ids("r1", "r0"), requestIds(cache.page(RecordingIndex.Sort.URI, false, 8, 5)));
+            Assert.assertTrue(cache.page(RecordingIndex.Sort.URI, false, 10, 5).isEmpty());
+
+            Assert.assertEquals(ids("r2", "r3", "r4"), requestIds(cache.range(1002, 1004, false, 0, 100)));
+            Assert.assertEquals(ids("r8", "r7"), requestIds(cache.range(1005, 2000, true, 1, 2)));
+            Assert.assertTrue(cache.range(2000, 3000, false, 0, 100).isEmpty());
+
+            // Removed and replaced recordings drop out of the indexes
+            cache.shrink(cache.memorySize() - 1);
+            cache.put("r9", recording("r9", 1));
+            Assert.assertEquals(
+                    9, cache.page(RecordingIndex.Sort.START, false, 0, 100).size());
+            Assert.assertEquals(ids("r9", "r1"), requestIds(cache.page(RecordingIndex.Sort.SIZE, false, 0, 2)));
+
+            cache.clear();
+            Assert.assertTrue(
+                    cache.page(RecordingIndex.Sort.DURATION, true, 0, 100).isEmpty());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static List<String> ids(String... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static List<String> requestIds(List<JSONRecording> recordings) {
+        List<String> result = new ArrayList<>();
+        for (JSONRecording r : recordings) {
+            result.add(r.getRequestId());
+        }
+        return result;
+    }
+
+    private static JSONRecording recording(String requestId, int size) {
+        JSONRecording recording = Mockito.mock(JSONRecording.class);
+        Mockito.when(recording.size()).thenReturn(size);
+        Mockito.when(recording.getRetainedSize()).thenReturn((long) size);
+        Mockito.when(recording.getRequestId()).thenReturn(requestId);
+        return recording;
     }
 }
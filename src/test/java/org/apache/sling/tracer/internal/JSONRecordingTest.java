@@ -19,11 +19,13 @@
 package org.apache.sling.tracer.internal;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.servlet.http.HttpServletRequest;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
 
 import ch.qos.logback.classic.Level;
 import org.junit.Test;
@@ -117,6 +119,156 @@ public class JSONRecordingTest {
         assertEquals(json.getJsonArray("queries").getJsonObject(1).getString("plan"), "FOO PLAN");
     }
 
+    @Test
+    public void queryPlanAnalysis() throws Exception {
+        StringWriter sw = new StringWriter();
+
+        when(request.getMethod()).thenReturn("GET");
+        JSONRecording r = new JSONRecording("abc", request, true);
+
+        r.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                tuple("Parsing {} statement: {}", "XPATH", "SELECT FOO"));
+        r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan [nt:base] as [a] /* traverse \"*\" */"));
+        r.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                tuple("Parsing {} statement: {}", "XPATH", "SELECT BAR"));
+        r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan [nt:base] as [a] /* lucene:foo(/oak:index/foo) */"));
+
+        r.done();
+        r.render(sw);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        JsonObject p1 = json.getJsonArray("queries").getJsonObject(0).getJsonObject("planInfo");
+        assertEquals("traversal", p1.getString("type"));
+        JsonObject p2 = json.getJsonArray("queries").getJsonObject(1).getJsonObject("planInfo");
+        assertEquals("indexed", p2.getString("type"));
+        assertEquals("lucene:foo", p2.getJsonArray("indexes").getString(0));
+
+        JsonObject summary = json.getJsonObject("queryPlanSummary");
+        assertEquals(2, summary.getInt("queries"));
+        assertEquals(1, summary.getInt("traversal"));
+        assertEquals(1, summary.getInt("indexed"));
+        assertEquals(1, summary.getJsonObject("indexes").getInt("lucene:foo"));
+    }
+
+    @Test
+    public void queryTimings() throws Exception {
+        StringWriter sw = new StringWriter();
+
+        when(request.getMethod()).thenReturn("GET");
+        JSONRecording r = new JSONRecording("abc", request, true);
+
+        r.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                tuple("Parsing {} statement: {}", "XPATH", "SELECT FOO"));
+        r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan FOO PLAN"));
+        r.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                tuple("Parsing {} statement: {}", "XPATH", "SELECT BAR"));
+        r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan BAR PLAN"));
+
+        r.done();
+        r.render(sw);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertTrue(json.getJsonNumber("timeNanos").longValue() >= 0);
+        assertEquals(TimeUnit.NANOSECONDS.toMillis(r.getTimeTakenNanos()), r.getTimeTaken());
+
+        JsonArray queries = json.getJsonArray("queries");
+        assertEquals(2, queries.size());
+
+        JsonObject q1 = queries.getJsonObject(0);
+        JsonObject q2 = queries.getJsonObject(1);
+        long start1 = q1.getJsonNumber("start").longValue();
+        long end1 = q1.getJsonNumber("end").longValue();
+        assertTrue(end1 >= start1);
+        assertEquals(end1 - start1, q1.getJsonNumber("duration").longValue());
+        assertTrue(q1.getJsonNumber("untilNext").longValue() >= 0);
+
+        // Next query event for first query is parsing of the second one
+        assertEquals(
+                q2.getJsonNumber("start").longValue(),
+                end1 + q1.getJsonNumber("untilNext").longValue());
+
+        long lastOffset = 0;
+        for (JsonObject log : json.getJsonArray("logs").getValuesAs(JsonObject.class)) {
+            long offset = log.getJsonNumber("offset").longValue();
+            assertTrue(offset >= lastOffset);
+            lastOffset = offset;
+        }
+    }
+
+    @Test
+    public void queryHotspots() throws Exception {
+        StringWriter sw = new StringWriter();
+
+        when(request.getMethod()).thenReturn("GET");
+        JSONRecording r = new JSONRecording("abc", request, true, 3);
+
+        for (int i = 0; i < 4; i++) {
+            r.log(
+                    tc,
+                    Level.DEBUG,
+                    "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                    tuple("Parsing {} statement: {}", "JCR-SQL2", "SELECT * FROM [nt:base] WHERE [id] = " + i));
+            r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan FOO PLAN"));
+        }
+        r.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                tuple("Parsing {} statement: {}", "JCR-SQL2", "SELECT * FROM [nt:base] WHERE [foo] = 'bar'"));
+        r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan BAR PLAN"));
+
+        r.done();
+        r.render(sw);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertEquals(5, json.getJsonArray("queries").size());
+
+        JsonArray hotspots = json.getJsonArray("queryHotspots");
+        assertEquals(1, hotspots.size());
+        JsonObject hotspot = hotspots.getJsonObject(0);
+        assertEquals("SELECT * FROM [nt:base] WHERE [id] = ?", hotspot.getString("shape"));
+        assertEquals(4, hotspot.getInt("count"));
+        assertTrue(hotspot.getJsonNumber("totalTime").longValue() >= 0);
+    }
+
+    @Test
+    public void retainedSize() throws Exception {
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/content/foo.html");
+        JSONRecording r = new JSONRecording("abc", request, true);
+
+        r.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                tuple("Parsing {} statement: {}", "JCR-SQL2", "SELECT * FROM [nt:base] WHERE [foo] = 'bar'"));
+        r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan FOO PLAN"));
+        r.recordCategory("foo");
+        r.done();
+
+        // Payload alone understates the retained size
+        long retainedSize = r.getRetainedSize();
+        assertTrue(retainedSize > r.size() + Util.estimateSize("/content/foo.html"));
+
+        // Logs after done are ignored and do not grow the recording
+        r.log(tc, Level.INFO, "foo", tuple("late"));
+        r.recordCategory("bar");
+        assertEquals(retainedSize, r.getRetainedSize());
+        assertEquals(0, r.getErrorCount());
+    }
+
     @Test
     public void requestTrackerLogs() throws Exception {
         StringWriter sw = new StringWriter();
@@ -162,6 +314,70 @@ public class JSONRecordingTest {
         assertNotNull(l3.get("exception"));
     }
 
+    @Test
+    public void tailLogs() throws Exception {
+        StringWriter sw = new StringWriter();
+        JSONRecording r = new JSONRecording("abc", request, true);
+        r.bufferTail(2);
+
+        r.log(tc, Level.WARN, "foo", MessageFormatter.format("one", null));
+        r.log(tc, Level.INFO, "foo", MessageFormatter.format("two", null));
+        r.log(tc, Level.INFO, "foo", MessageFormatter.format("three", null));
+        // Levels are recorded for all log events, captured or not
+        r.recordLevel(Level.WARN);
+        r.recordLevel(Level.ERROR);
+        r.recordLevel(Level.INFO);
+        assertTrue(r.isTail());
+        assertEquals(2, r.getWarnCount());
+
+        r.done();
+        r.render(sw);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertEquals(2, json.getJsonArray("logs").size());
+        assertEquals("two", json.getJsonArray("logs").getJsonObject(0).getString("message"));
+        assertEquals("three", json.getJsonArray("logs").getJsonObject(1).getString("message"));
+        assertEquals(1, json.getInt("droppedLogs"));
+    }
+
+    @Test
+    public void tailQueries() throws Exception {
+        StringWriter sw = new StringWriter();
+        JSONRecording r = new JSONRecording("abc", request, true);
+        r.bufferTail(2);
+
+        for (int i = 0; i < 3; i++) {
+            r.log(
+                    tc,
+                    Level.DEBUG,
+                    "org.apache.jackrabbit.oak.query.QueryEngineImpl",
+                    tuple("Parsing {} statement: {}", "XPATH", "SELECT " + i));
+            r.log(tc, Level.DEBUG, QE_LOGGER, tuple("query plan PLAN " + i));
+        }
+        r.done();
+        r.render(sw);
+
+        // Queries are bounded like the log entries, oldest going first
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertEquals(2, json.getJsonArray("queries").size());
+        assertEquals("SELECT 1", json.getJsonArray("queries").getJsonObject(0).getString("query"));
+        assertEquals(1, json.getInt("droppedQueries"));
+        assertEquals(3, r.getQueryCount());
+    }
+
+    @Test
+    public void discard() throws Exception {
+        JSONRecording r = new JSONRecording("abc", request, true);
+        r.bufferTail(10);
+        r.log(tc, Level.INFO, "foo", MessageFormatter.format("one", null));
+        r.discard();
+
+        // No payload is created for a discarded recording
+        long size = r.getRetainedSize();
+        r.done();
+        assertEquals(size, r.getRetainedSize());
+    }
+
     @Test
     public void logsWithCaller() throws Exception {
         StringWriter sw = new StringWriter();
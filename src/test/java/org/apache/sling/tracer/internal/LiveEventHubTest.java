@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LiveEventHubTest {
+
+    @Test
+    public void slowSubscriberDropsEvents() throws Exception {
+        LiveEventHub hub = new LiveEventHub(2, 2);
+        LiveEventHub.Subscriber s = hub.subscribe(null, null);
+        for (int i = 0; i < 5; i++) {
+            hub.publish("a", "/content/a", LiveEventHub.LOG, "{}");
+        }
+        assertEquals(3, s.takeDropped());
+        assertEquals(0, s.takeDropped());
+        assertEquals(1, s.poll(0, TimeUnit.MILLISECONDS).id);
+        assertEquals(2, s.poll(0, TimeUnit.MILLISECONDS).id);
+        assertNull(s.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void filters() throws Exception {
+        LiveEventHub hub = new LiveEventHub(2, 10);
+        assertFalse(hub.accepts("a", "/content/a"));
+
+        LiveEventHub.Subscriber byId = hub.subscribe("a", null);
+        LiveEventHub.Subscriber byUri = hub.subscribe(null, "/content/b");
+        assertNull("Subscribers are bounded", hub.subscribe(null, null));
+        assertTrue(hub.accepts("a", "/x"));
+        assertTrue(hub.accepts("x", "/content/b/c"));
+        assertFalse(hub.accepts("x", "/content/c"));
+
+        hub.publish("a", "/content/a", LiveEventHub.LOG, "{}");
+        hub.publish("b", "/content/b", LiveEventHub.QUERY, "{}");
+        assertEquals(LiveEventHub.LOG, byId.poll(0, TimeUnit.MILLISECONDS).type);
+        assertNull(byId.poll(0, TimeUnit.MILLISECONDS));
+        assertEquals(LiveEventHub.QUERY, byUri.poll(0, TimeUnit.MILLISECONDS).type);
+
+        byId.close();
+        assertEquals(1, hub.getSubscriberCount());
+        hub.close();
+        assertTrue(byUri.isClosed());
+        assertEquals(0, hub.getSubscriberCount());
+        assertNull(hub.subscribe(null, null));
+    }
+}
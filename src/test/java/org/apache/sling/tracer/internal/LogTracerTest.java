@@ -67,11 +67,16 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -360,6 +365,294 @@ public class LogTracerTest {
         assertEquals(1, json.getJsonArray("logs").size());
     }
 
+    @Test
+    public void sampledRecording() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "servletEnabled", "true",
+                "samplingRate", "1.0",
+                "samplingTracerSets", "oak-query"));
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext()) {
+            @Override
+            public String getRequestURI() {
+                return "/content/sampled.html";
+            }
+        };
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response)
+                    throws IOException, ServletException {
+                assertNotNull(context.getService(TurboFilter.class));
+            }
+        };
+        prepareChain(chain).doFilter(request, response);
+
+        // Client did not ask for the recording so response is left as is
+        verify(response, never()).setHeader(eq(TracerLogServlet.HEADER_TRACER_REQUEST_ID), anyString());
+        TracerLogServlet logServlet = (TracerLogServlet) context.getService(Servlet.class);
+        assertEquals(1, logServlet.getMetrics().getRequestsSampled());
+        List<JSONRecording> recordings = logServlet.getCache().asList();
+        assertEquals(1, recordings.size());
+        assertEquals("/content/sampled.html", recordings.get(0).getUri());
+    }
+
+    @Test
+    public void tailSampledRecording() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "servletEnabled", "true",
+                "samplingRate", "1.0",
+                "samplingMaxPerSecond", "100",
+                "tailLatencyThresholdMillis", "60000"));
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {}
+        };
+        prepareChain(chain).doFilter(request, response);
+
+        // Fast and successful request is not retained
+        TracerLogServlet logServlet = (TracerLogServlet) context.getService(Servlet.class);
+        assertEquals(1, logServlet.getMetrics().getRecordingsDiscarded());
+        assertTrue(logServlet.getCache().asList().isEmpty());
+
+        // Probing the warn level does not log anything
+        FilterChain probingChain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                getLogContext().addTurboFilter(context.getService(TurboFilter.class));
+                getLogger("a.b").isWarnEnabled();
+            }
+        };
+        prepareChain(probingChain).doFilter(request, response);
+        assertEquals(2, logServlet.getMetrics().getRecordingsDiscarded());
+        assertTrue(logServlet.getCache().asList().isEmpty());
+
+        // Failed request is retained
+        when(response.getStatus()).thenReturn(500);
+        prepareChain(chain).doFilter(request, response);
+
+        assertEquals(2, logServlet.getMetrics().getRecordingsDiscarded());
+        assertEquals(1, logServlet.getCache().asList().size());
+
+        // Exception is only mapped to a 500 status by the container later
+        when(response.getStatus()).thenReturn(200);
+        FilterChain failingChain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws ServletException {
+                throw new ServletException("failed");
+            }
+        };
+        try {
+            prepareChain(failingChain).doFilter(request, response);
+            fail("Exception should be propagated");
+        } catch (ServletException expected) {
+            // Expected
+        }
+        assertEquals(2, logServlet.getMetrics().getRecordingsDiscarded());
+        assertEquals(2, logServlet.getCache().asList().size());
+
+        // Warnings of loggers outside of the sampling tracer sets count as well
+        FilterChain warningChain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                getLogContext().addTurboFilter(context.getService(TurboFilter.class));
+                getLogger("a.b").warn("a.b-warn");
+            }
+        };
+        prepareChain(warningChain).doFilter(request, response);
+        assertEquals(2, logServlet.getMetrics().getRecordingsDiscarded());
+        assertEquals(3, logServlet.getCache().asList().size());
+    }
+
+    @Test
+    public void autoTracedRecording() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "servletEnabled", "true",
+                "autoTraceThresholdMillis", "1",
+                "autoTraceWindowSize", "1",
+                "autoTraceRequests", "1"));
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // First slow request marks the path as regressed
+        prepareChain(chain).doFilter(request, response);
+        TracerLogServlet logServlet = (TracerLogServlet) context.getService(Servlet.class);
+        assertEquals(0, logServlet.getMetrics().getRequestsAutoTraced());
+        assertTrue(logServlet.getCache().asList().isEmpty());
+
+        prepareChain(chain).doFilter(request, response);
+        assertEquals(1, logServlet.getMetrics().getRequestsAutoTraced());
+        assertEquals(1, logServlet.getCache().asList().size());
+
+        // Only the configured number of requests is traced within the cooldown
+        prepareChain(chain).doFilter(request, response);
+        assertEquals(1, logServlet.getMetrics().getRequestsAutoTraced());
+    }
+
+    @Test
+    public void autoTracedRecordingWithTailSampling() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>builder()
+                .put("enabled", "true")
+                .put("servletEnabled", "true")
+                .put("samplingPathRates", "/other/.*=1.0")
+                .put("samplingMaxPerSecond", "100")
+                .put("tailLatencyThresholdMillis", "60000")
+                .put("autoTraceThresholdMillis", "1")
+                .put("autoTraceWindowSize", "1")
+                .put("autoTraceRequests", "1")
+                .build());
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext());
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        prepareChain(chain).doFilter(request, response);
+        prepareChain(chain).doFilter(request, response);
+
+        // Auto traced request is kept although it finished below the tail threshold
+        TracerLogServlet logServlet = (TracerLogServlet) context.getService(Servlet.class);
+        assertEquals(1, logServlet.getMetrics().getRequestsAutoTraced());
+        assertEquals(0, logServlet.getMetrics().getRecordingsDiscarded());
+        assertEquals(1, logServlet.getCache().asList().size());
+    }
+
+    @Test
+    public void admissionRejected() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "servletEnabled", "true",
+                "admissionMaxPerSecond", "1"));
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext());
+        request.setHeader(LogTracer.HEADER_TRACER_CONFIG, "a.b;level=debug");
+        request.setHeader(TracerLogServlet.HEADER_TRACER_RECORDING, "true");
+
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {}
+        };
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        prepareChain(chain).doFilter(request, response);
+        verify(response, never()).setHeader(eq(LogTracer.HEADER_TRACER_REJECTED), anyString());
+        assertNotNull(getRequestId(response));
+
+        // Bucket only holds a single token
+        HttpServletResponse rejected = mock(HttpServletResponse.class);
+        prepareChain(chain).doFilter(request, rejected);
+        verify(rejected).setHeader(LogTracer.HEADER_TRACER_REJECTED, "rate");
+        // Rejected request is not recorded either
+        verify(rejected, never()).setHeader(eq(TracerLogServlet.HEADER_TRACER_REQUEST_ID), anyString());
+
+        TracerLogServlet logServlet = (TracerLogServlet) context.getService(Servlet.class);
+        assertEquals(1, logServlet.getMetrics().getTracingRejected());
+        assertEquals(1, logServlet.getCache().asList().size());
+        assertNull(context.getService(TurboFilter.class));
+    }
+
+    @Test
+    public void sampledAdmissionRejected() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "servletEnabled", "true",
+                "samplingRate", "1.0",
+                "samplingMaxPerSecond", "100",
+                "admissionMaxPerSecond", "1"));
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext());
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {}
+        };
+
+        prepareChain(chain).doFilter(request, mock(HttpServletResponse.class));
+
+        // Client did not ask for tracing so the rejection is not reported but counted
+        HttpServletResponse rejected = mock(HttpServletResponse.class);
+        prepareChain(chain).doFilter(request, rejected);
+        verify(rejected, never()).setHeader(anyString(), anyString());
+
+        TracerLogServlet logServlet = (TracerLogServlet) context.getService(Servlet.class);
+        assertEquals(1, logServlet.getMetrics().getTracingRejected());
+        assertEquals(1, logServlet.getMetrics().getRequestsSampled());
+        assertEquals(1, logServlet.getCache().asList().size());
+    }
+
+    @Test
+    public void admissionReleasedOnFailedStart() throws Exception {
+        activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "servletEnabled", "true",
+                "admissionMaxPerSecond", "0",
+                "admissionMaxConcurrent", "1"));
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.bundleContext());
+        request.setHeader(LogTracer.HEADER_TRACER_CONFIG, "a.b;level=debug");
+        request.setHeader(TracerLogServlet.HEADER_TRACER_RECORDING, "true");
+        FilterChain chain = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {}
+        };
+
+        HttpServletResponse failing = mock(HttpServletResponse.class);
+        doThrow(new IllegalStateException("committed"))
+                .when(failing)
+                .setHeader(eq(TracerLogServlet.HEADER_TRACER_REQUEST_ID), anyString());
+        try {
+            prepareChain(chain).doFilter(request, failing);
+            fail("Exception should be propagated");
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+
+        // Slot taken by the failed request is free again
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        prepareChain(chain).doFilter(request, response);
+        verify(response, never()).setHeader(eq(LogTracer.HEADER_TRACER_REJECTED), anyString());
+        assertNotNull(getRequestId(response));
+    }
+
+    @Test
+    public void adHocMinLevel() throws Exception {
+        LogTracer logTracer = activateLogTracerWithServlet(ImmutableMap.<String, Object>of(
+                "enabled", "true",
+                "adHocMinLevel", "DEBUG",
+                "tracerSets", new String[] {"foo : a.b.c;level=trace"}));
+
+        TracerContext adHoc = logTracer.getTracerContext(null, "a.b.c;level=trace", Recording.NOOP);
+        assertNull(adHoc.findMatchingConfig("a.b.c.D", Level.TRACE));
+        assertNotNull(adHoc.findMatchingConfig("a.b.c.D", Level.DEBUG));
+
+        // Configured tracer sets are trusted
+        TracerContext tracerSet = logTracer.getTracerContext("foo", null, Recording.NOOP);
+        assertNotNull(tracerSet.findMatchingConfig("a.b.c.D", Level.TRACE));
+    }
+
     private void activateTracer() {
         context.registerInjectActivateService(new LogTracer(), ImmutableMap.<String, Object>of("enabled", "true"));
     }
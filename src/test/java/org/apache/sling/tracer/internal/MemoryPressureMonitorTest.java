@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.management.Notification;
+
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MemoryPressureMonitorTest {
+    private static final long MAX = 1000;
+
+    private final MemoryPoolMXBean pool = mock(MemoryPoolMXBean.class);
+
+    @Test
+    public void thresholdConfigured() throws Exception {
+        when(pool.getUsage()).thenReturn(usage(100));
+
+        MemoryPressureMonitor monitor = newMonitor(() -> {});
+        verify(pool).setCollectionUsageThreshold(850);
+
+        when(pool.getCollectionUsageThreshold()).thenReturn(850L);
+        monitor.close();
+        verify(pool).setCollectionUsageThreshold(0);
+    }
+
+    @Test
+    public void existingThresholdLeftAlone() throws Exception {
+        when(pool.getUsage()).thenReturn(usage(100));
+        when(pool.getCollectionUsageThreshold()).thenReturn(420L);
+        AtomicInteger released = new AtomicInteger();
+
+        MemoryPressureMonitor monitor = newMonitor(released::incrementAndGet);
+        verify(pool, never()).setCollectionUsageThreshold(anyLong());
+
+        // Notified for the lower threshold of someone else
+        when(pool.getCollectionUsage()).thenReturn(usage(500));
+        monitor.handleNotification(
+                new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, pool, 1), null);
+        assertEquals(0, released.get());
+        assertFalse(monitor.isUnderPressure());
+
+        monitor.close();
+        verify(pool, never()).setCollectionUsageThreshold(anyLong());
+    }
+
+    @Test
+    public void changedThresholdNotReset() throws Exception {
+        when(pool.getUsage()).thenReturn(usage(100));
+        MemoryPressureMonitor monitor = newMonitor(() -> {});
+
+        when(pool.getCollectionUsageThreshold()).thenReturn(600L);
+        monitor.close();
+        verify(pool, never()).setCollectionUsageThreshold(0);
+    }
+
+    @Test
+    public void pressureTillLowWatermark() throws Exception {
+        when(pool.getUsage()).thenReturn(usage(100));
+        AtomicInteger released = new AtomicInteger();
+        MemoryPressureMonitor monitor = newMonitor(released::incrementAndGet);
+        assertFalse(monitor.isUnderPressure());
+
+        when(pool.getCollectionUsage()).thenReturn(usage(900));
+        monitor.handleNotification(
+                new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED, pool, 1), null);
+        assertEquals(1, released.get());
+        assertTrue(monitor.isUnderPressure());
+
+        // Above low watermark the pressure persists
+        when(pool.getCollectionUsage()).thenReturn(usage(750));
+        assertTrue(monitor.isUnderPressure());
+
+        when(pool.getCollectionUsage()).thenReturn(usage(600));
+        assertFalse(monitor.isUnderPressure());
+
+        // Other notifications are ignored
+        monitor.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED, pool, 2), null);
+        assertEquals(1, released.get());
+    }
+
+    @Test
+    public void cacheShrinksOnPressure() throws Exception {
+        when(pool.getUsage()).thenReturn(usage(100));
+        TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(10, 60);
+        try {
+            for (int i = 0; i < 8; i++) {
+                cache.put("r" + i, recording("r" + i, 1024 * 1024));
+            }
+            MemoryPressureMonitor monitor = newMonitor(() -> cache.shrink(cache.memorySize() / 2));
+            monitor.thresholdExceeded();
+
+            assertEquals(4, cache.size());
+            assertNull("Oldest recordings should be evicted first", cache.get("r0"));
+            assertNotNull(cache.get("r7"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        assertNull(MemoryPressureMonitor.create(0, 70, () -> {}));
+    }
+
+    private MemoryPressureMonitor newMonitor(Runnable handler) {
+        return new MemoryPressureMonitor(Collections.singletonList(pool), 85, 70, handler, null);
+    }
+
+    private static MemoryUsage usage(long used) {
+        return new MemoryUsage(0, used, MAX, MAX);
+    }
+
+    private static JSONRecording recording(String requestId, int size) {
+        JSONRecording recording = Mockito.mock(JSONRecording.class);
+        Mockito.when(recording.getRetainedSize()).thenReturn((long) size);
+        Mockito.when(recording.getRequestId()).thenReturn(requestId);
+        return recording;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import org.junit.Test;
+
+import static org.apache.sling.tracer.internal.QueryNormalizer.normalize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueryNormalizerTest {
+
+    @Test
+    public void literals() throws Exception {
+        assertNull(normalize(null));
+        assertEquals("SELECT * FROM [nt:base] WHERE [foo] = ?", normalize("SELECT * FROM [nt:base] WHERE [foo] = 'a'"));
+        assertEquals(
+                "SELECT * FROM [nt:base] WHERE [foo] = ?", normalize("SELECT * FROM [nt:base] WHERE [foo] = 'it''s'"));
+        assertEquals(
+                "SELECT * FROM [nt:base] WHERE [foo] = ?", normalize("SELECT * FROM [nt:base] WHERE [foo] = \"a\""));
+        assertEquals(
+                "SELECT * FROM [nt:base] WHERE [size] > ? AND [x] < ?",
+                normalize("SELECT * FROM [nt:base] WHERE [size] > 10 AND [x] < 1.5e3"));
+    }
+
+    @Test
+    public void identifiersRetained() throws Exception {
+        assertEquals("SELECT * FROM [dam:Asset2] AS a1", normalize("SELECT * FROM [dam:Asset2] AS a1"));
+    }
+
+    @Test
+    public void bindVariables() throws Exception {
+        assertEquals(
+                "SELECT * FROM [nt:base] WHERE [jcr:uuid] = ?",
+                normalize("SELECT * FROM [nt:base] WHERE [jcr:uuid] = $id"));
+    }
+
+    @Test
+    public void sql2Paths() throws Exception {
+        assertEquals(
+                "SELECT * FROM [nt:base] WHERE ISDESCENDANTNODE([?])",
+                normalize("SELECT * FROM [nt:base] WHERE ISDESCENDANTNODE([/content/foo])"));
+    }
+
+    @Test
+    public void xpathPaths() throws Exception {
+        assertEquals("/jcr:root/?//*[@foo = ?]", normalize("/jcr:root/content/foo//*[@foo = 'bar']"));
+        assertEquals("/jcr:root/?/element(*, cq:Page)", normalize("/jcr:root/content/site1/element(*, cq:Page)"));
+        assertEquals("/jcr:root//*[@foo = ?]", normalize("/jcr:root//*[@foo = 'bar']"));
+    }
+
+    @Test
+    public void whitespace() throws Exception {
+        assertEquals("SELECT * FROM [nt:base]", normalize("  SELECT *\n  FROM   [nt:base] "));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.sling.tracer.internal.QueryPlanAnalyzer.PlanInfo;
+import org.apache.sling.tracer.internal.QueryPlanAnalyzer.PlanType;
+import org.junit.Test;
+
+import static org.apache.sling.tracer.internal.QueryPlanAnalyzer.analyze;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPlanAnalyzerTest {
+
+    @Test
+    public void traversal() throws Exception {
+        PlanInfo info = analyze("[nt:base] as [a] /* traverse \"/content//*\" where ([a].[foo] = 'bar') */");
+        assertEquals(PlanType.TRAVERSAL, info.type);
+        assertEquals(1, info.selectorCount);
+        assertTrue(info.indexes.isEmpty());
+        assertFalse(info.isUnion());
+    }
+
+    @Test
+    public void luceneIndex() throws Exception {
+        PlanInfo info = analyze("[cq:Page] as [a] /* lucene:cqPageLucene(/oak:index/cqPageLucene) "
+                + "+:ancestors:/content where isdescendantnode([a], [/content]) */");
+        assertEquals(PlanType.INDEXED, info.type);
+        assertEquals(Collections.singletonList("lucene:cqPageLucene"), info.indexes);
+    }
+
+    @Test
+    public void propertyIndex() throws Exception {
+        PlanInfo info = analyze("[nt:base] as [a] /* property uuid(/oak:index/uuid) jcr:uuid = 'x' */");
+        assertEquals(PlanType.INDEXED, info.type);
+        assertEquals(Collections.singletonList("property:uuid"), info.indexes);
+
+        info = analyze("[nt:base] as [a] /* nodeType Filter(query=select ...) */");
+        assertEquals(Collections.singletonList("nodeType"), info.indexes);
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        PlanInfo info = analyze("[nt:base] as [a] /* aggregate lucene:fulltext(/oak:index/fulltext) foo */");
+        assertEquals(Collections.singletonList("lucene:fulltext"), info.indexes);
+    }
+
+    @Test
+    public void union() throws Exception {
+        PlanInfo info = analyze("[nt:base] as [a] /* lucene:a(/oak:index/a) */ union [nt:base] as [a] "
+                + "/* traverse \"*\" */ union [nt:base] as [a] /* lucene:b(/oak:index/b) */");
+        assertEquals(PlanType.TRAVERSAL, info.type);
+        assertEquals(2, info.unionCount);
+        assertEquals(3, info.selectorCount);
+        assertEquals(Arrays.asList("lucene:a", "lucene:b"), info.indexes);
+    }
+
+    @Test
+    public void unknown() throws Exception {
+        assertEquals(PlanType.UNKNOWN, analyze(null).type);
+        assertEquals(PlanType.UNKNOWN, analyze("FOO PLAN").type);
+    }
+
+    @Test
+    public void summary() throws Exception {
+        QueryPlanAnalyzer.Summary summary = new QueryPlanAnalyzer.Summary();
+        summary.add(analyze("[nt:base] as [a] /* traverse \"*\" */"));
+        summary.add(analyze("[nt:base] as [a] /* lucene:a(/oak:index/a) */"));
+        summary.add(analyze("[nt:base] as [a] /* lucene:a(/oak:index/a) */"));
+        assertEquals(1, summary.getCount(PlanType.TRAVERSAL));
+        assertEquals(2, summary.getCount(PlanType.INDEXED));
+        assertEquals(0, summary.getCount(PlanType.UNKNOWN));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.tracer.internal.QueryStatsAggregator.ShapeAggregate;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueryStatsAggregatorTest {
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(15);
+
+    @Test
+    public void aggregateAcrossRecordings() throws Exception {
+        QueryStatsAggregator agg = new QueryStatsAggregator(15 * 60, 100);
+        long now = System.currentTimeMillis();
+
+        agg.add(stats("SELECT A = 1", "c1", 3, "SELECT B = 2", "c1", 1).getStats(), now);
+        agg.add(stats("SELECT A = 5", "c2", 2).getStats(), now);
+
+        List<ShapeAggregate> result = agg.getStats(WINDOW, 10, now);
+        assertEquals(2, result.size());
+
+        ShapeAggregate a = result.get(0);
+        assertEquals("SELECT A = ?", a.shape);
+        assertEquals(5, a.count);
+        assertEquals(2, a.requests);
+        assertEquals(Long.valueOf(3), a.callers.get("c1"));
+        assertEquals(Long.valueOf(2), a.callers.get("c2"));
+        assertEquals(Long.valueOf(5), a.plans.get("traversal"));
+
+        assertEquals(1, agg.getStats(WINDOW, 1, now).size());
+    }
+
+    @Test
+    public void window() throws Exception {
+        QueryStatsAggregator agg = new QueryStatsAggregator(15 * 60, 100);
+        long now = System.currentTimeMillis();
+
+        agg.add(stats("SELECT A = 1", "c1", 1).getStats(), now - TimeUnit.MINUTES.toMillis(10));
+        agg.add(stats("SELECT B = 1", "c1", 1).getStats(), now);
+
+        assertEquals(2, agg.getStats(WINDOW, 10, now).size());
+        assertEquals(1, agg.getStats(TimeUnit.MINUTES.toMillis(5), 10, now).size());
+
+        // Past the window all older stats are dropped
+        assertTrue(agg.getStats(WINDOW, 10, now + TimeUnit.MINUTES.toMillis(20)).isEmpty());
+    }
+
+    @Test
+    public void boundedShapes() throws Exception {
+        QueryStatsAggregator agg = new QueryStatsAggregator(15 * 60, 2);
+        long now = System.currentTimeMillis();
+
+        agg.add(
+                stats("SELECT A", "c1", 1, "SELECT B", "c1", 1, "SELECT C", "c1", 1)
+                        .getStats(),
+                now);
+
+        List<ShapeAggregate> result = agg.getStats(WINDOW, 10, now);
+        assertEquals(3, result.size());
+        boolean otherFound = false;
+        for (ShapeAggregate sa : result) {
+            otherFound |= QueryStatsAggregator.OTHER.equals(sa.shape);
+        }
+        assertTrue(otherFound);
+    }
+
+    private static QueryHotspotDetector stats(Object... shapeCallerCount) {
+        QueryHotspotDetector detector = new QueryHotspotDetector(1);
+        for (int i = 0; i < shapeCallerCount.length; i += 3) {
+            int count = (Integer) shapeCallerCount[i + 2];
+            for (int j = 0; j < count; j++) {
+                detector.add((String) shapeCallerCount[i], (String) shapeCallerCount[i + 1], "traversal", 10);
+            }
+        }
+        return detector;
+    }
+}
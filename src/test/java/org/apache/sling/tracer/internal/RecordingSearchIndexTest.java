@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.servlet.http.HttpServletRequest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Test;
+import org.slf4j.helpers.MessageFormatter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RecordingSearchIndexTest {
+
+    @Test
+    public void searchByTermAndPrefix() throws Exception {
+        RecordingSearchIndex index = new RecordingSearchIndex();
+        String[] a = {"uri:/content/a.html", "log:WARN:org.apache.sling.resourceresolver.impl.Foo", "text:missing"};
+        String[] b = {"uri:/content/b.html", "log:WARN:org.apache.sling.engine.Bar", "text:missing"};
+        index.add("a", a);
+        index.add("b", b);
+
+        assertEquals(ids("a", "b"), index.search(Collections.singletonList("Missing")));
+        assertEquals(ids("a"), index.search(Collections.singletonList("log:WARN:org.apache.sling.resourceresolver*")));
+        assertEquals(ids("a", "b"), index.search(Collections.singletonList("log:WARN:org.apache.sling*")));
+        assertEquals(ids("b"), index.search(Arrays.asList("text:MISSING", "uri:/content/b*")));
+        assertTrue(index.search(Arrays.asList("uri:/content/a.html", "uri:/content/b.html"))
+                .isEmpty());
+        assertTrue(index.search(Collections.singletonList("log:ERROR*")).isEmpty());
+
+        // Terms no longer referred are dropped
+        index.remove("a", a);
+        assertEquals(ids("b"), index.search(Collections.singletonList("missing")));
+        assertEquals(3, index.termCount());
+        index.remove("b", b);
+        assertEquals(0, index.termCount());
+    }
+
+    @Test
+    public void concurrentUpdates() throws Exception {
+        final RecordingSearchIndex index = new RecordingSearchIndex();
+        final String[] shared = {"level:WARN", "text:missing", "uri:/content/a.html"};
+        final int threadCount = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final String prefix = "t" + t + "-";
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 10000; i++) {
+                        index.add(prefix + i, shared);
+                        index.remove(prefix + i, shared);
+                    }
+                    // Leave one recording per thread behind
+                    index.add(prefix, shared);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+        start.countDown();
+        assertTrue(done.await(1, TimeUnit.MINUTES));
+
+        // No posting got lost with a term dropped by a concurrent remove
+        assertEquals(shared.length, index.termCount());
+        assertEquals(ids("t0-", "t1-", "t2-", "t3-"), index.search(Collections.singletonList("level:WARN")));
+    }
+
+    @Test
+    public void extractPaths() throws Exception {
+        assertEquals(
+                Arrays.asList("/content/foo", "/content/bar"),
+                RecordingSearchIndex.extractPaths(
+                        "SELECT * FROM [nt:base] WHERE ISDESCENDANTNODE('/content/foo') OR ISCHILDNODE('/content/bar')"));
+        assertEquals(
+                Collections.singletonList("/content/foo/jcr:content"),
+                RecordingSearchIndex.extractPaths("/jcr:root/content/foo/jcr:content//element(*, nt:base)"));
+        assertTrue(RecordingSearchIndex.extractPaths("SELECT 'a'").isEmpty());
+    }
+
+    @Test
+    public void recordingTerms() throws Exception {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/content/a/b.html");
+        JSONRecording r = new JSONRecording("x", request, true);
+        r.setMaxSearchTerms(100);
+        TracerConfig tc = new TracerConfig("org.apache.sling", Level.DEBUG);
+        r.recordCategory("org.apache.sling.Foo");
+        r.log(tc, Level.WARN, "org.apache.sling.Foo", MessageFormatter.format("Resource {} missing", "/x"));
+        r.done();
+
+        List<String> terms = Arrays.asList(r.getSearchTerms());
+        assertTrue(terms.containsAll(Arrays.asList(
+                "uri:/content/a/b.html",
+                "segment:content",
+                "segment:b.html",
+                "logger:org.apache.sling.Foo",
+                "level:WARN",
+                "log:WARN:org.apache.sling.Foo",
+                "text:resource",
+                "text:missing")));
+
+        // Terms are bounded with message text going first
+        r = new JSONRecording("y", request, true);
+        r.setMaxSearchTerms(5);
+        r.log(tc, Level.WARN, "org.apache.sling.Foo", MessageFormatter.format("Resource missing", null));
+        r.done();
+        assertArrayEquals(
+                new String[] {
+                    "uri:/content/a/b.html",
+                    "segment:content",
+                    "segment:a",
+                    "segment:b.html",
+                    "logger:org.apache.sling.Foo"
+                },
+                r.getSearchTerms());
+    }
+
+    private static HashSet<String> ids(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.servlet.http.HttpServletRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.helpers.MessageFormatter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RecordingStoreTest {
+    private static final long MB = 1024 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeAndRender() throws Exception {
+        RecordingStore store = newStore(MB, MB);
+        JSONRecording compressed = recording("a", true);
+        JSONRecording plain = recording("b", false);
+        assertTrue(store.write(compressed));
+        assertTrue(store.write(plain));
+        assertEquals(2, store.size());
+
+        assertEquals("request a", message(store, "a"));
+        assertEquals("request b", message(store, "b"));
+
+        // Compressed form is served as stored
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertTrue(store.render(store.get("a"), baos, true));
+        assertEquals(compressed.size(), baos.size());
+
+        assertNull(store.get("c"));
+        store.close();
+    }
+
+    @Test
+    public void recoverAfterRestart() throws Exception {
+        RecordingStore store = newStore(MB, MB);
+        store.write(recording("a", true));
+        store.write(recording("b", true));
+        long diskSize = store.diskSize();
+        store.close();
+
+        // Simulate a crash while appending a record
+        File segment = folder.getRoot().listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[] {0x53, 0x4c, 0x54});
+        }
+
+        store = newStore(MB, MB);
+        assertEquals(2, store.size());
+        assertEquals(diskSize, store.diskSize());
+        assertEquals(diskSize, segment.length());
+        assertEquals("request b", message(store, "b"));
+
+        // Appends continue after the recovered records
+        store.write(recording("c", true));
+        assertEquals("request c", message(store, "c"));
+        store.close();
+    }
+
+    @Test
+    public void oldestSegmentsDeleted() throws Exception {
+        JSONRecording r = recording("r0", true);
+        int recordSize = r.size() + 100;
+        // Two records per segment and at most three segments
+        RecordingStore store = newStore(6 * recordSize, 2 * recordSize);
+        for (int i = 0; i < 10; i++) {
+            store.write(recording("r" + i, true));
+        }
+
+        assertNull(store.get("r0"));
+        assertNotNull(store.get("r9"));
+        assertTrue(store.diskSize() <= 6 * recordSize);
+        assertTrue(folder.getRoot().listFiles().length <= 3);
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.diskSize());
+        store.close();
+    }
+
+    @Test
+    public void expiredSegmentsDeleted() throws Exception {
+        RecordingStore store = new RecordingStore(folder.getRoot(), MB, 100, TimeUnit.MINUTES.toMillis(5));
+        store.write(recording("a", true));
+        store.write(recording("b", true));
+
+        store.deleteOldSegments(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10));
+        assertNull(store.get("a"));
+        // Current segment goes as well once all its recordings expired
+        assertEquals(0, store.size());
+        assertEquals(0, store.diskSize());
+        assertEquals(0, folder.getRoot().listFiles().length);
+
+        // Writes continue in a new segment
+        assertTrue(store.write(recording("c", true)));
+        assertEquals("request c", message(store, "c"));
+        store.close();
+    }
+
+    @Test
+    public void periodicCleanup() throws Exception {
+        RecordingStore store = new RecordingStore(folder.getRoot(), MB, MB, 1);
+        store.write(recording("a", true));
+        Thread.sleep(5);
+
+        // Idle store deletes expired segments without further writes
+        store.cleanup();
+        assertEquals(0, store.size());
+        assertEquals(0, folder.getRoot().listFiles().length);
+        store.close();
+    }
+
+    private RecordingStore newStore(long maxSize, long segmentSize) throws Exception {
+        return new RecordingStore(folder.getRoot(), maxSize, segmentSize, TimeUnit.HOURS.toMillis(1));
+    }
+
+    private static String message(RecordingStore store, String requestId) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertTrue(store.render(store.get(requestId), baos, false));
+        JsonObject json = Json.createReader(new StringReader(new String(baos.toByteArray(), StandardCharsets.UTF_8)))
+                .readObject();
+        return json.getJsonArray("logs").getJsonObject(0).getString("message");
+    }
+
+    private static JSONRecording recording(String requestId, boolean compress) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/" + requestId);
+        JSONRecording r = new JSONRecording(requestId, request, compress);
+        r.log(new TracerConfig("foo", Level.INFO), Level.INFO, "foo", MessageFormatter.format("request {}", requestId));
+        r.done();
+        return r;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestIdGeneratorTest {
+
+    @Test
+    public void timeOrdered() throws Exception {
+        RequestIdGenerator generator = new RequestIdGenerator(42);
+        long now = System.currentTimeMillis();
+        String first = generator.next(now);
+        UUID uuid = UUID.fromString(first);
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        assertEquals(now, RequestIdGenerator.timestampOf(first));
+
+        // Ids stay ordered within a millisecond and if the clock goes back
+        String previous = first;
+        for (long t : new long[] {now, now, now - 1000, now + 1}) {
+            String id = generator.next(t);
+            assertTrue(id + " > " + previous, id.compareTo(previous) > 0);
+            previous = id;
+        }
+        assertEquals(now + 1, RequestIdGenerator.timestampOf(previous));
+    }
+
+    @Test
+    public void sequenceOverflowCarriesIntoTimestamp() throws Exception {
+        RequestIdGenerator generator = new RequestIdGenerator(42);
+        String id = null;
+        for (int i = 0; i <= 4096; i++) {
+            id = generator.next(1000);
+        }
+        assertEquals(1001, RequestIdGenerator.timestampOf(id));
+    }
+
+    @Test
+    public void timestampOfOtherIds() throws Exception {
+        assertEquals(-1, RequestIdGenerator.timestampOf(UUID.randomUUID().toString()));
+        assertEquals(-1, RequestIdGenerator.timestampOf("abc"));
+        assertEquals(-1, RequestIdGenerator.timestampOf(null));
+    }
+
+    @Test
+    public void uniqueAcrossThreads() throws Exception {
+        RequestIdGenerator generator = new RequestIdGenerator(42);
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 10000; j++) {
+                    ids.add(generator.next());
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, ids.size());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestSamplerTest {
+
+    @Test
+    public void pathRates() throws Exception {
+        List<RequestSampler.PathRate> pathRates = RequestSampler.parsePathRates(
+                new String[] {"/content/dam/.*=0", "/content/.*=0.5", "invalid", "[=0.1", "/bin/.*=x", " "});
+        assertEquals(2, pathRates.size());
+
+        RequestSampler sampler = new RequestSampler(0.1, pathRates, 100, "oak-query");
+        assertEquals(0, sampler.rateFor("/content/dam/a.jpg"), 0);
+        assertEquals(0.5, sampler.rateFor("/content/a.html"), 0);
+        assertEquals(0.1, sampler.rateFor("/libs/a.html"), 0);
+
+        long now = 1000;
+        assertTrue(sampler.sample("/content/a.html", 0.4, now));
+        assertFalse(sampler.sample("/content/a.html", 0.6, now));
+        assertFalse(sampler.sample("/content/dam/a.jpg", 0.0, now));
+        assertFalse(sampler.sample("/libs/a.html", 0.2, now));
+        assertTrue(sampler.sample("/libs/a.html", 0.05, now));
+    }
+
+    @Test
+    public void maxPerSecond() throws Exception {
+        RequestSampler sampler = new RequestSampler(1, Collections.emptyList(), 3, "oak-query");
+        long now = 5000;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(sampler.sample("/a", 0.5, now + i));
+        }
+        assertFalse(sampler.sample("/a", 0.5, now + 999));
+        // Next second
+        assertTrue(sampler.sample("/a", 0.5, now + 1000));
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        assertNull(RequestSampler.create(TestUtil.createConfig()));
+    }
+}
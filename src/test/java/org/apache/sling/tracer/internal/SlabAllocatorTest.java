@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.servlet.http.HttpServletRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SlabAllocatorTest {
+    private static final int CHUNK = 1024;
+
+    private final SlabAllocator allocator = new SlabAllocator(16 * CHUNK, CHUNK, 4 * CHUNK);
+
+    @Test
+    public void storeAndRead() throws Exception {
+        byte[] data = randomBytes(3 * CHUNK + 100);
+        SlabAllocator.Payload p = allocator.store(data);
+        assertNotNull(p);
+        assertEquals(data.length, p.length());
+        assertEquals(4 * CHUNK, p.capacity());
+        assertEquals(4 * CHUNK, allocator.getUsed());
+
+        try (InputStream is = p.openStream()) {
+            assertArrayEquals(data, IOUtils.toByteArray(is));
+        }
+
+        p.release();
+        assertEquals(0, allocator.getUsed());
+        assertNull(p.openStream());
+    }
+
+    @Test
+    public void chunksReused() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            SlabAllocator.Payload p = allocator.store(randomBytes(5 * CHUNK));
+            assertNotNull(p);
+            p.release();
+        }
+        assertEquals(0, allocator.getUsed());
+        assertEquals(8 * CHUNK, allocator.getReserved());
+    }
+
+    @Test
+    public void capacityExhausted() throws Exception {
+        SlabAllocator.Payload p = allocator.store(randomBytes(12 * CHUNK));
+        assertNotNull(p);
+        assertNull(allocator.store(randomBytes(5 * CHUNK)));
+        assertNotNull(allocator.store(randomBytes(4 * CHUNK)));
+        assertEquals(16 * CHUNK, allocator.getCapacity());
+    }
+
+    @Test
+    public void releaseWhileReading() throws Exception {
+        byte[] data = randomBytes(2 * CHUNK);
+        SlabAllocator.Payload p = allocator.store(data);
+        InputStream is = p.openStream();
+        p.release();
+        assertTrue(p.isReleased());
+
+        // Chunks are only freed once the open stream is closed
+        assertEquals(2 * CHUNK, allocator.getUsed());
+        assertArrayEquals(data, IOUtils.toByteArray(is));
+        is.close();
+        assertEquals(0, allocator.getUsed());
+    }
+
+    @Test
+    public void closeWhileReading() throws Exception {
+        byte[] data = randomBytes(2 * CHUNK);
+        SlabAllocator.Payload p = allocator.store(data);
+        InputStream is = p.openStream();
+        assertEquals(data[0] & 0xff, is.read());
+
+        allocator.close();
+        assertNull(p.openStream());
+        assertNull(allocator.store(data));
+        try {
+            IOUtils.toByteArray(is);
+            fail("Reading a closed allocator should fail");
+        } catch (IOException expected) {
+            // Expected
+        }
+        is.close();
+    }
+
+    @Test
+    public void cacheStoresOffHeap() throws Exception {
+        TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(1, 60, EvictionPolicy.LRU, true);
+        try {
+            HttpServletRequest request = mock(HttpServletRequest.class);
+            when(request.getMethod()).thenReturn("GET");
+            JSONRecording r = new JSONRecording("abc", request, true);
+            r.done();
+            int size = r.size();
+            long heapSize = r.getRetainedSize();
+
+            cache.put("abc", r);
+            assertEquals(size, r.size());
+            assertTrue(r.getOffHeapSize() >= size);
+            assertTrue(r.getRetainedSize() < heapSize);
+
+            StringWriter sw = new StringWriter();
+            assertTrue(r.render(sw));
+            JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+            assertEquals("GET", json.getString("method"));
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            assertTrue(r.render(compressed, true));
+            assertEquals(size, compressed.size());
+
+            // Eviction frees the off heap chunks
+            cache.clear();
+            assertEquals(0, cache.getAllocator().getUsed());
+            assertFalse(r.render(new StringWriter()));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void chunkOverheadBounded() throws Exception {
+        SlabAllocator defaults = new SlabAllocator(SlabAllocator.DEFAULT_SLAB_SIZE);
+        try {
+            // Typical compressed recordings are a few KB
+            for (int length = 1500; length <= 8 * 1024; length += 500) {
+                SlabAllocator.Payload p = defaults.store(randomBytes(length));
+                assertNotNull(p);
+                assertTrue(p.capacity() - length < SlabAllocator.DEFAULT_CHUNK_SIZE);
+                assertTrue(p.capacity() <= 2 * length);
+                p.release();
+            }
+        } finally {
+            defaults.close();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
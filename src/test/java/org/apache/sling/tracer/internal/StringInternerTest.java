@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StringInternerTest {
+
+    @Test
+    public void sameInstance() throws Exception {
+        StringInterner interner = new StringInterner(4, 100);
+        String a = new String("SELECT * FROM [nt:base]");
+        String b = new String("SELECT * FROM [nt:base]");
+        assertNotSame(a, b);
+
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(b));
+        assertNull(interner.intern(null));
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        StringInterner interner = new StringInterner(1, 2);
+        String a = "a", b = "b";
+        interner.intern(a);
+        interner.intern(b);
+
+        String c1 = new String("c");
+        String c2 = new String("c");
+        assertSame(c1, interner.intern(c1));
+        // Pool is full so new strings are not pooled
+        assertSame(c2, interner.intern(c2));
+        assertEquals(2, interner.size());
+    }
+}
@@ -20,6 +20,10 @@ package org.apache.sling.tracer.internal;
 
 import javax.servlet.http.HttpServletResponse;
 
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
 import org.apache.sling.api.request.RequestProgressTracker;
 import org.mockito.ArgumentCaptor;
 
@@ -37,6 +41,31 @@ class TestUtil {
         return tracker;
     }
 
+    static Configuration createConfig() {
+        return createConfig(Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * Creates a Configuration instance which returns the passed values and falls
+     * back to the defaults declared in the annotation
+     */
+    static Configuration createConfig(final Map<String, Object> props) {
+        return (Configuration) Proxy.newProxyInstance(
+                Configuration.class.getClassLoader(), new Class<?>[] {Configuration.class}, (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(props, args);
+                    }
+                    if (props.containsKey(method.getName())) {
+                        return props.get(method.getName());
+                    }
+                    Object defaultValue = method.getDefaultValue();
+                    if (defaultValue == null && method.getReturnType() == boolean.class) {
+                        return false;
+                    }
+                    return defaultValue;
+                });
+    }
+
     static String getRequestId(HttpServletResponse response) {
         ArgumentCaptor<String> requestIdCaptor = ArgumentCaptor.forClass(String.class);
         verify(response).setHeader(eq(TracerLogServlet.HEADER_TRACER_REQUEST_ID), requestIdCaptor.capture());
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TracerAdmissionTest {
+
+    @Test
+    public void rate() throws Exception {
+        TracerAdmission admission = new TracerAdmission(4, 0);
+        long now = TimeUnit.SECONDS.toNanos(100);
+        // Bucket starts full
+        for (int i = 0; i < 4; i++) {
+            assertNull(admission.tryAcquire(now));
+        }
+        assertEquals(TracerAdmission.Rejection.RATE, admission.tryAcquire(now));
+
+        // A token accrues every 250 ms
+        assertEquals(TracerAdmission.Rejection.RATE, admission.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(200)));
+        assertNull(admission.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(250)));
+        assertEquals(TracerAdmission.Rejection.RATE, admission.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(300)));
+
+        // Tokens do not accrue beyond the capacity
+        long later = now + TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < 4; i++) {
+            assertNull(admission.tryAcquire(later));
+        }
+        assertEquals(TracerAdmission.Rejection.RATE, admission.tryAcquire(later));
+    }
+
+    @Test
+    public void concurrency() throws Exception {
+        TracerAdmission admission = new TracerAdmission(0, 2);
+        assertNull(admission.tryAcquire(0));
+        assertNull(admission.tryAcquire(0));
+        assertEquals(TracerAdmission.Rejection.CONCURRENCY, admission.tryAcquire(0));
+        assertEquals(2, admission.getActiveCount());
+
+        admission.release();
+        assertNull(admission.tryAcquire(0));
+    }
+
+    @Test
+    public void rateRejectionReleasesSlot() throws Exception {
+        TracerAdmission admission = new TracerAdmission(1, 2);
+        assertNull(admission.tryAcquire(0));
+        assertEquals(TracerAdmission.Rejection.RATE, admission.tryAcquire(0));
+        assertEquals(1, admission.getActiveCount());
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            assertNull(TracerAdmission.UNLIMITED.tryAcquire(0));
+        }
+        assertEquals(0, TracerAdmission.UNLIMITED.getActiveCount());
+    }
+}
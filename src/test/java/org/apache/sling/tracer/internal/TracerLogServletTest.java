@@ -19,6 +19,7 @@
 package org.apache.sling.tracer.internal;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
@@ -31,15 +32,24 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 import java.util.zip.GZIPInputStream;
 
+import ch.qos.logback.classic.Level;
 import org.apache.commons.io.IOUtils;
 import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
 import org.jetbrains.annotations.NotNull;
+import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -49,10 +59,14 @@ import org.mockito.junit.MockitoRule;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
+import org.slf4j.helpers.MessageFormatter;
 
 import static org.apache.sling.tracer.internal.TestUtil.createTracker;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -60,6 +74,7 @@ import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -77,6 +92,15 @@ public class TracerLogServletTest {
     @Mock
     private HttpServletResponse response;
 
+    private final List<TracerLogServlet> servlets = new ArrayList<>();
+
+    @After
+    public void closeServlets() {
+        for (TracerLogServlet servlet : servlets) {
+            servlet.close();
+        }
+    }
+
     @Test
     public void noRecordingByDefault() throws Exception {
         TracerLogServlet logServlet = newLogServlet();
@@ -135,6 +159,64 @@ public class TracerLogServletTest {
         assertEquals(2, json.getJsonArray("requestProgressLogs").size());
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void inlineSummary() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(context.bundleContext());
+        req.setMethod("GET");
+        req.addHeader(TracerLogServlet.HEADER_TRACER_RECORDING, "true");
+        req.addHeader(
+                TracerLogServlet.HEADER_TRACER_PROTOCOL_VERSION,
+                String.valueOf(TracerLogServlet.TRACER_PROTOCOL_VERSION_INLINE));
+
+        TracerConfig tc = new TracerConfig("org.apache.sling", Level.INFO);
+        Recording recording = logServlet.startRecording(req, response);
+        for (int i = 0; i < 3; i++) {
+            recording.log(tc, Level.INFO, "org.apache.sling.Foo", MessageFormatter.format("foo", null));
+        }
+        recording.log(tc, Level.ERROR, "org.apache.sling.Bar", MessageFormatter.format("bar", null));
+        logServlet.endRecording(req, recording);
+
+        verify(response)
+                .setHeader(
+                        TracerLogServlet.HEADER_TRACER_PROTOCOL_VERSION,
+                        String.valueOf(TracerLogServlet.TRACER_PROTOCOL_VERSION_INLINE));
+        verify(response).setHeader("Trailer", TracerLogServlet.HEADER_TRACER_SUMMARY);
+        ArgumentCaptor<String> summaryCaptor = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq(TracerLogServlet.HEADER_TRACER_SUMMARY), summaryCaptor.capture());
+
+        JsonObject summary =
+                Json.createReader(new StringReader(summaryCaptor.getValue())).readObject();
+        assertEquals(((JSONRecording) recording).getRequestId(), summary.getString("requestId"));
+        assertEquals(1, summary.getInt("errorCount"));
+        assertEquals(4, summary.getInt("logCount"));
+        assertEquals(3, summary.getJsonObject("topLoggers").getInt("org.apache.sling.Foo"));
+
+        // Sent as header hence the trailer is withdrawn and stays empty
+        verify(response).setHeader("Trailer", null);
+        ArgumentCaptor<Supplier<Map<String, String>>> trailerCaptor = ArgumentCaptor.forClass(Supplier.class);
+        verify(response).setTrailerFields(trailerCaptor.capture());
+        when(response.containsHeader(TracerLogServlet.HEADER_TRACER_SUMMARY)).thenReturn(true);
+        assertTrue(trailerCaptor.getValue().get().isEmpty());
+
+        // Summary of a response committed meanwhile is only sent as trailer
+        HttpServletResponse committed = mock(HttpServletResponse.class);
+        when(committed.isCommitted()).thenReturn(true);
+        recording = logServlet.startRecording(req, committed);
+        logServlet.endRecording(req, recording);
+
+        verify(committed).setHeader("Trailer", TracerLogServlet.HEADER_TRACER_SUMMARY);
+        verify(committed, never()).setHeader(eq(TracerLogServlet.HEADER_TRACER_SUMMARY), anyString());
+        verify(committed, never()).setHeader("Trailer", null);
+        trailerCaptor = ArgumentCaptor.forClass(Supplier.class);
+        verify(committed).setTrailerFields(trailerCaptor.capture());
+        String trailer = trailerCaptor.getValue().get().get(TracerLogServlet.HEADER_TRACER_SUMMARY);
+        assertEquals(
+                ((JSONRecording) recording).getRequestId(),
+                Json.createReader(new StringReader(trailer)).readObject().getString("requestId"));
+    }
+
     @Test
     public void gzipResponse() throws Exception {
         TracerLogServlet logServlet = newLogServlet();
@@ -167,6 +249,300 @@ public class TracerLogServletTest {
         verify(response).setHeader("Content-Encoding", "gzip");
     }
 
+    @Test
+    public void queryStats() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getHeader(TracerLogServlet.HEADER_TRACER_RECORDING)).thenReturn("true");
+
+        TracerConfig tc = new TracerConfig(TracerContext.QUERY_LOGGER, Level.DEBUG);
+        Recording recording = logServlet.startRecording(request, response);
+        recording.log(
+                tc,
+                Level.DEBUG,
+                TracerContext.QUERY_LOGGER,
+                MessageFormatter.arrayFormat("Parsing {} statement: {}", new Object[] {"JCR-SQL2", "SELECT 'a'"}));
+        recording.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryImpl",
+                MessageFormatter.format("query plan FOO", null));
+        logServlet.endRecording(request, recording);
+        // Per recording stats are handed off and not kept with the cached recording
+        assertTrue(((JSONRecording) recording).takeQueryStats().isEmpty());
+
+        // Stats must be retained even if recordings are gone
+        logServlet.getCache().clear();
+
+        StringWriter sw = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sw));
+        when(request.getRequestURI()).thenReturn("/system/console/tracer/" + TracerLogServlet.QUERY_STATS + ".json");
+        logServlet.renderContent(request, response);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        JsonArray shapes = json.getJsonArray("shapes");
+        assertEquals(1, shapes.size());
+        assertEquals("SELECT ?", shapes.getJsonObject(0).getString("shape"));
+        assertEquals(1, shapes.getJsonObject(0).getInt("requests"));
+
+        // Invalid limit is clamped
+        sw = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sw));
+        when(request.getParameter(TracerLogServlet.PARAM_LIMIT)).thenReturn("-1");
+        logServlet.renderContent(request, response);
+        json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertEquals(1, json.getJsonArray("shapes").size());
+    }
+
+    @Test
+    public void export() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        String a1 = record(logServlet, "/content/a/1.html");
+        String a2 = record(logServlet, "/content/a/2.html");
+        record(logServlet, "/content/b.html");
+
+        when(request.getRequestURI()).thenReturn("/system/console/tracer/" + TracerLogServlet.EXPORT + ".json");
+        when(request.getParameter(RecordingExporter.PARAM_URI)).thenReturn("/content/a");
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+        ByteArrayServletOutputStream sos = new ByteArrayServletOutputStream();
+        when(response.getOutputStream()).thenReturn(sos);
+        logServlet.renderContent(request, response);
+
+        verify(response).setContentType(RecordingExporter.CONTENT_TYPE);
+        verify(response).setHeader("Content-Encoding", "gzip");
+        String[] lines = new String(
+                        IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(sos.baos.toByteArray()))),
+                        "UTF-8")
+                .split("\n");
+        assertEquals(2, lines.length);
+        Set<String> ids = new HashSet<>();
+        for (String line : lines) {
+            JsonObject json = Json.createReader(new StringReader(line)).readObject();
+            assertTrue(json.getString("uri").startsWith("/content/a/"));
+            assertEquals("GET", json.getJsonObject("recording").getString("method"));
+            ids.add(json.getString("requestId"));
+        }
+        assertEquals(new HashSet<>(Arrays.asList(a1, a2)), ids);
+
+        // Plain response filtered by id
+        HttpServletRequest exportRequest = mock(HttpServletRequest.class);
+        when(exportRequest.getRequestURI()).thenReturn("/system/console/tracer/" + TracerLogServlet.EXPORT + ".json");
+        when(exportRequest.getParameterValues(RecordingExporter.PARAM_ID)).thenReturn(new String[] {"x," + a2});
+        sos = new ByteArrayServletOutputStream();
+        when(response.getOutputStream()).thenReturn(sos);
+        logServlet.renderContent(exportRequest, response);
+
+        lines = sos.baos.toString("UTF-8").split("\n");
+        assertEquals(1, lines.length);
+        assertEquals(
+                a2, Json.createReader(new StringReader(lines[0])).readObject().getString("requestId"));
+    }
+
+    @Test
+    public void list() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(record(logServlet, "/content/" + i + ".html"));
+        }
+
+        when(request.getRequestURI()).thenReturn("/system/console/tracer/" + TracerLogServlet.LIST + ".json");
+        when(request.getParameter(TracerLogServlet.PARAM_SORT)).thenReturn("uri");
+        when(request.getParameter(TracerLogServlet.PARAM_ORDER)).thenReturn("desc");
+        when(request.getParameter(TracerLogServlet.PARAM_OFFSET)).thenReturn("1");
+        when(request.getParameter(TracerLogServlet.PARAM_LIMIT)).thenReturn("3");
+        StringWriter sw = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sw));
+        logServlet.renderContent(request, response);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertEquals(5, json.getInt("total"));
+        assertEquals("uri", json.getString(TracerLogServlet.PARAM_SORT));
+        JsonArray recordings = json.getJsonArray("recordings");
+        assertEquals(3, recordings.size());
+        for (int i = 0; i < 3; i++) {
+            JsonObject r = recordings.getJsonObject(i);
+            assertEquals("/content/" + (3 - i) + ".html", r.getString("uri"));
+            assertTrue(ids.contains(r.getString("requestId")));
+        }
+
+        // Html listing is paged as well
+        when(request.getRequestURI()).thenReturn("/system/console/tracer");
+        sw = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sw));
+        logServlet.renderContent(request, response);
+        String html = sw.toString();
+        assertTrue(html.contains("Showing 2 - 4 of 5"));
+        assertTrue(html.contains("offset=0"));
+        assertTrue(html.contains("offset=4"));
+        assertFalse(html.contains("/content/4.html"));
+    }
+
+    @Test
+    public void search() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/content/foo.html");
+        when(request.getHeader(TracerLogServlet.HEADER_TRACER_RECORDING)).thenReturn("true");
+
+        TracerConfig tc = new TracerConfig(TracerContext.QUERY_LOGGER, Level.DEBUG);
+        Recording recording = logServlet.startRecording(request, response);
+        recording.log(
+                tc,
+                Level.DEBUG,
+                TracerContext.QUERY_LOGGER,
+                MessageFormatter.arrayFormat(
+                        "Parsing {} statement: {}",
+                        new Object[] {"JCR-SQL2", "SELECT * FROM [nt:base] WHERE ISDESCENDANTNODE('/content/foo')"}));
+        recording.log(
+                tc,
+                Level.DEBUG,
+                "org.apache.jackrabbit.oak.query.QueryImpl",
+                MessageFormatter.format("query plan FOO", null));
+        recording.log(
+                tc,
+                Level.WARN,
+                "org.apache.sling.resourceresolver.impl.Foo",
+                MessageFormatter.format("Resource not found", null));
+        logServlet.endRecording(request, recording);
+        String requestId = ((JSONRecording) recording).getRequestId();
+        record(logServlet, "/content/bar.html");
+
+        StringWriter sw = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(sw));
+        when(request.getRequestURI()).thenReturn("/system/console/tracer/" + TracerLogServlet.SEARCH + ".json");
+        when(request.getParameterValues(TracerLogServlet.PARAM_QUERY))
+                .thenReturn(new String[] {"log:WARN:org.apache.sling.resourceresolver*", "path:/content*"});
+        logServlet.renderContent(request, response);
+
+        JsonObject json = Json.createReader(new StringReader(sw.toString())).readObject();
+        assertEquals(1, json.getInt("count"));
+        assertEquals(requestId, json.getJsonArray("recordings").getJsonObject(0).getString("requestId"));
+
+        // Postings go along with the recordings
+        logServlet.getCache().clear();
+        assertEquals(0, logServlet.getCache().searchTermCount());
+    }
+
+    @Test
+    public void live() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        HttpServletRequest liveRequest = mock(HttpServletRequest.class);
+        when(liveRequest.getRequestURI()).thenReturn("/system/console/tracer/" + TracerLogServlet.LIVE + ".json");
+        when(liveRequest.getParameter(TracerLogServlet.PARAM_URI)).thenReturn("/content/live");
+        when(liveRequest.getParameter(TracerLogServlet.PARAM_TIMEOUT)).thenReturn("2");
+        HttpServletResponse liveResponse = mock(HttpServletResponse.class);
+        StringWriter sw = new StringWriter();
+        when(liveResponse.getWriter()).thenReturn(new PrintWriter(sw));
+
+        Thread t = new Thread(() -> {
+            try {
+                logServlet.renderContent(liveRequest, liveResponse);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        t.start();
+        LiveEventHub hub = logServlet.getLiveEvents();
+        while (hub.getSubscriberCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getRequestURI()).thenReturn("/content/live.html");
+        when(request.getHeader(TracerLogServlet.HEADER_TRACER_RECORDING)).thenReturn("true");
+        Recording recording = logServlet.startRecording(request, response);
+        recording.log(
+                new TracerConfig("org.apache.sling", Level.INFO),
+                Level.INFO,
+                "org.apache.sling.Foo",
+                MessageFormatter.format("Rendering {}", "/content/live"));
+        // Not matching the uri filter
+        record(logServlet, "/content/other.html");
+        logServlet.endRecording(request, recording);
+        t.join();
+
+        verify(liveResponse).setContentType("text/event-stream");
+        assertEquals(0, hub.getSubscriberCount());
+        String events = sw.toString();
+        assertTrue(events.contains("event: start\n"));
+        assertTrue(events.contains("event: end\n"));
+        assertFalse(events.contains("/content/other.html"));
+        String logEvent = events.substring(events.indexOf("event: log\ndata: ") + 17);
+        JsonObject json = Json.createReader(new StringReader(logEvent.substring(0, logEvent.indexOf('\n'))))
+                .readObject();
+        assertEquals(((JSONRecording) recording).getRequestId(), json.getString("requestId"));
+        assertEquals("Rendering /content/live", json.getString("message"));
+    }
+
+    @Test
+    public void conditionalRequests() throws Exception {
+        TracerLogServlet logServlet = newLogServlet();
+        String requestId = record(logServlet, "/content/a.html");
+        int size = logServlet.getCache().get(requestId).size();
+        when(request.getRequestURI()).thenReturn("/system/console/tracer/" + requestId + ".json");
+        when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+
+        HttpServletResponse full = mock(HttpServletResponse.class);
+        ByteArrayServletOutputStream sos = new ByteArrayServletOutputStream();
+        when(full.getOutputStream()).thenReturn(sos);
+        logServlet.renderContent(request, full);
+        byte[] content = sos.baos.toByteArray();
+        assertEquals(size, content.length);
+
+        ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+        verify(full).setHeader(eq("ETag"), etagCaptor.capture());
+        verify(full).setHeader("Cache-Control", TracerLogServlet.CACHE_CONTROL);
+        verify(full).setHeader("Accept-Ranges", "bytes");
+        String etag = etagCaptor.getValue();
+
+        // Revalidation
+        HttpServletResponse notModified = mock(HttpServletResponse.class);
+        when(request.getHeader("If-None-Match")).thenReturn("\"foo\", " + etag);
+        logServlet.renderContent(request, notModified);
+        verify(notModified).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(notModified, never()).getOutputStream();
+
+        // Range over the compressed form
+        when(request.getHeader("If-None-Match")).thenReturn(null);
+        when(request.getHeader("Range")).thenReturn("bytes=10-19");
+        HttpServletResponse partial = mock(HttpServletResponse.class);
+        sos = new ByteArrayServletOutputStream();
+        when(partial.getOutputStream()).thenReturn(sos);
+        logServlet.renderContent(request, partial);
+        verify(partial).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(partial).setHeader("Content-Range", "bytes 10-19/" + size);
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), sos.baos.toByteArray());
+
+        when(request.getHeader("Range")).thenReturn("bytes=" + size + "-");
+        HttpServletResponse unsatisfiable = mock(HttpServletResponse.class);
+        logServlet.renderContent(request, unsatisfiable);
+        verify(unsatisfiable).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(unsatisfiable).setHeader("Content-Range", "bytes */" + size);
+    }
+
+    @Test
+    public void parseRange() throws Exception {
+        assertArrayEquals(new long[] {0, 99}, TracerLogServlet.parseRange("bytes=0-", 100));
+        assertArrayEquals(new long[] {90, 99}, TracerLogServlet.parseRange("bytes=-10", 100));
+        assertArrayEquals(new long[] {50, 99}, TracerLogServlet.parseRange("bytes=50-500", 100));
+        assertArrayEquals(new long[0], TracerLogServlet.parseRange("bytes=100-", 100));
+        assertNull(TracerLogServlet.parseRange("bytes=0-1,5-6", 100));
+        assertNull(TracerLogServlet.parseRange("bytes=a-b", 100));
+        assertNull(TracerLogServlet.parseRange("items=0-1", 100));
+    }
+
+    private String record(TracerLogServlet logServlet, String uri) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getRequestURI()).thenReturn(uri);
+        when(req.getHeader(TracerLogServlet.HEADER_TRACER_RECORDING)).thenReturn("true");
+        Recording recording = logServlet.startRecording(req, resp);
+        logServlet.endRecording(req, recording);
+        return ((JSONRecording) recording).getRequestId();
+    }
+
     @SuppressWarnings("unchecked")
     private TracerLogServlet newLogServlet() {
         Bundle mockBundle = mock(Bundle.class);
@@ -178,7 +554,9 @@ public class TracerLogServletTest {
         when(mockBc.registerService(anyString(), any(), any(Dictionary.class)))
                 .thenReturn(mock(ServiceRegistration.class));
 
-        return new TracerLogServlet(mockBc, 50, 60 * 15, true, true);
+        TracerLogServlet logServlet = new TracerLogServlet(mockBc, TestUtil.createConfig());
+        servlets.add(logServlet);
+        return logServlet;
     }
 
     @Test
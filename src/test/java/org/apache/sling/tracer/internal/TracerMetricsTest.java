@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import javax.management.MBeanInfo;
+import javax.management.StandardMBean;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TracerMetricsTest {
+
+    @Test
+    public void histogram() throws Exception {
+        TracerMetrics.Histogram h = new TracerMetrics.Histogram();
+        assertEquals(0, h.getPercentile(99));
+
+        for (int i = 0; i < 98; i++) {
+            h.record(100, TimeUnit.MICROSECONDS);
+        }
+        h.record(5, TimeUnit.MILLISECONDS);
+        h.record(20, TimeUnit.MILLISECONDS);
+
+        assertEquals(100, h.getCount());
+        assertEquals(127, h.getPercentile(50));
+        assertEquals(8191, h.getPercentile(99));
+        assertEquals(20000, h.getPercentile(100));
+        assertEquals(20000, h.getMax());
+        assertEquals((98 * 100 + 5000 + 20000) / 100, h.getMean());
+    }
+
+    @Test
+    public void cacheMetrics() throws Exception {
+        TracerMetrics metrics = new TracerMetrics();
+        TracerLogServlet.BoundedCache cache =
+                new TracerLogServlet.BoundedCache(1, 60, EvictionPolicy.LRU, false, 0, metrics);
+        try {
+            cache.put("a", recording("a", 600 * 1024));
+            cache.put("b", recording("b", 300 * 1024));
+            assertNotNull(cache.get("a"));
+
+            // Evicts b which is the least recently accessed and never fetched
+            cache.put("c", recording("c", 300 * 1024));
+            assertNull(cache.get("b"));
+            assertEquals(1, metrics.getEvictedBySize());
+            assertEquals(1, metrics.getEvictedUnfetched());
+
+            cache.expire(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2));
+            assertEquals(2, metrics.getEvictedByExpiry());
+            assertEquals(2, metrics.getEvictedUnfetched());
+            assertEquals(1200 * 1024, metrics.getBytesIn());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void mbeanCompliant() throws Exception {
+        MBeanInfo info = new StandardMBean(new TracerMetrics(), TracerStatsMBean.class).getMBeanInfo();
+        assertEquals(18, info.getAttributes().length);
+    }
+
+    private static JSONRecording recording(String requestId, int size) {
+        JSONRecording recording = Mockito.mock(JSONRecording.class);
+        Mockito.when(recording.size()).thenReturn(size);
+        Mockito.when(recording.getRetainedSize()).thenReturn((long) size);
+        Mockito.when(recording.getRequestId()).thenReturn(requestId);
+        return recording;
+    }
+}
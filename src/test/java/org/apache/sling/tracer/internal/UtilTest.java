@@ -51,4 +51,10 @@ public class UtilTest {
         assertEquals(1, Util.count("she sell sea shells on the sea shore", "shore"));
         assertEquals(0, Util.count("she sell sea shells on the sea shore", "tiger"));
     }
+
+    @Test
+    public void escapeHtml() throws Exception {
+        assertEquals("", Util.escapeHtml(null));
+        assertEquals("/content/a.html?x=1&amp;y=&lt;b&gt;&quot;&#39;", Util.escapeHtml("/content/a.html?x=1&y=<b>\"'"));
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.tracer.internal;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ValueEvictionPolicyTest {
+
+    @Test
+    public void create() throws Exception {
+        assertSame(EvictionPolicy.LRU, EvictionPolicy.create(null, 10));
+        assertSame(EvictionPolicy.LRU, EvictionPolicy.create("lru", 10));
+        assertSame(EvictionPolicy.LRU, EvictionPolicy.create("foo", 10));
+        assertTrue(EvictionPolicy.create(" Value ", 10) instanceof ValueEvictionPolicy);
+    }
+
+    @Test
+    public void score() throws Exception {
+        double fast = ValueEvictionPolicy.score(recording("a", 10, 0, 0, 1024));
+        double slow = ValueEvictionPolicy.score(recording("b", 8000, 0, 0, 1024));
+        double error = ValueEvictionPolicy.score(recording("c", 10, 1, 0, 1024));
+        double queries = ValueEvictionPolicy.score(recording("d", 10, 0, 50, 1024));
+        double large = ValueEvictionPolicy.score(recording("e", 10, 0, 0, 1024 * 1024));
+
+        assertTrue(slow > fast);
+        assertTrue(error > fast);
+        assertTrue(queries > fast);
+        assertTrue(large < fast);
+    }
+
+    @Test
+    public void retainTopK() throws Exception {
+        ValueEvictionPolicy policy = new ValueEvictionPolicy(2);
+        JSONRecording a = recording("a", 100, 0, 0, 1024);
+        JSONRecording b = recording("b", 200, 0, 0, 1024);
+        JSONRecording c = recording("c", 300, 0, 0, 1024);
+        JSONRecording d = recording("d", 10, 0, 0, 1024);
+
+        policy.added(a);
+        policy.added(b);
+        assertTrue(policy.isRetained(a));
+        assertTrue(policy.isRetained(b));
+
+        policy.added(c);
+        assertFalse("Least valuable should be demoted", policy.isRetained(a));
+        assertTrue(policy.isRetained(c));
+
+        policy.added(d);
+        assertFalse(policy.isRetained(d));
+        assertSame(b, policy.leastValuable());
+
+        policy.removed(b);
+        assertFalse(policy.isRetained(b));
+        assertSame(c, policy.leastValuable());
+        assertEquals(1, policy.getRetainedCount());
+    }
+
+    @Test
+    public void cacheKeepsValuableRecordings() throws Exception {
+        TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(1, 60, new ValueEvictionPolicy(1));
+        try {
+            cache.put("slow", recording("slow", 8000, 0, 0, 100 * 1024));
+            for (int i = 0; i < 50; i++) {
+                cache.put("fast" + i, recording("fast" + i, 5, 0, 0, 100 * 1024));
+            }
+
+            assertNotNull(cache.get("slow"));
+            assertNotNull(cache.get("fast49"));
+            assertNull(cache.get("fast0"));
+            assertTrue(cache.memorySize() <= 1024 * 1024);
+
+            // Non retained recordings go first even if just added
+            cache.put("huge", recording("huge", 5, 0, 0, 1024 * 1024));
+            assertNull(cache.get("huge"));
+            assertNotNull(cache.get("slow"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void memoryBoundRespected() throws Exception {
+        TracerLogServlet.BoundedCache cache = new TracerLogServlet.BoundedCache(1, 60, new ValueEvictionPolicy(2));
+        try {
+            cache.put("a", recording("a", 8000, 0, 0, 600 * 1024));
+            cache.put("b", recording("b", 9000, 0, 0, 600 * 1024));
+
+            // Once only retained recordings are left the least valuable gets evicted
+            assertNull(cache.get("a"));
+            assertNotNull(cache.get("b"));
+            assertEquals(600 * 1024 + TracerLogServlet.BoundedCache.ENTRY_OVERHEAD, cache.memorySize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static JSONRecording recording(String id, long timeTaken, int errors, int queries, int size) {
+        JSONRecording recording = Mockito.mock(JSONRecording.class);
+        Mockito.when(recording.getRequestId()).thenReturn(id);
+        Mockito.when(recording.getTimeTaken()).thenReturn(timeTaken);
+        Mockito.when(recording.getErrorCount()).thenReturn(errors);
+        Mockito.when(recording.getQueryCount()).thenReturn(queries);
+        Mockito.when(recording.size()).thenReturn(size);
+        Mockito.when(recording.getRetainedSize()).thenReturn((long) size);
+        return recording;
+    }
+}